@@ -0,0 +1,531 @@
+package de.locked.cellmapper;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.DialogInterface;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.provider.Settings;
+import android.telephony.PhoneStateListener;
+import android.telephony.SignalStrength;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.concurrent.Callable;
+
+import de.locked.cellmapper.model.AdaptiveSampler;
+import de.locked.cellmapper.model.CaptureConfig;
+import de.locked.cellmapper.model.CaptureGovernor;
+import de.locked.cellmapper.model.CaptureThread;
+import de.locked.cellmapper.model.DataListener;
+import de.locked.cellmapper.model.DeviceState;
+import de.locked.cellmapper.model.DutyCycleScheduler;
+import de.locked.cellmapper.model.Metrics;
+import de.locked.cellmapper.model.MobileStatusUtils;
+import de.locked.cellmapper.model.Preferences;
+import de.locked.cellmapper.model.SignalTrigger;
+import de.locked.cellmapper.model.StickyBatterySource;
+
+/**
+ * Captures in one of three modes:
+ * <ul>
+ * <li>passive: record the fixes other apps request, from the passive provider</li>
+ * <li>active: request GPS fixes in duty cycles, see {@link Acquisition}</li>
+ * <li>hybrid: both</li>
+ * </ul>
+ * Every source has a single registration: the signal strengths for the lifetime of the service, the passive provider
+ * while the mode is passive or hybrid, GPS while the mode is active or hybrid. Switching the mode only registers or
+ * removes the sources that differ. Fixes that reach the {@link DataListener} twice, e.g. GPS fixes forwarded by the
+ * passive provider, are dropped there.
+ * <p/>
+ * Start with {@link #EXTRA_MODE} to set the mode, the last mode is kept in the preferences for sticky restarts.
+ */
+public class CaptureService extends Service implements CaptureConfig.Listener {
+    private static final String LOG_TAG = CaptureService.class.getName();
+
+    public static final String EXTRA_MODE = "mode";
+    public static final String MODE_PASSIVE = "passive";
+    public static final String MODE_ACTIVE = "active";
+    public static final String MODE_HYBRID = "hybrid";
+    // ends a sleep window in which the CPU may sleep, sent by the WakeUpReceiver
+    static final String ACTION_WAKE_UP = CaptureService.class.getName() + ".WAKE_UP";
+    private static final int MIN_TIME = 150; // ms - Minimum for minLocationTime
+    // location updates in high rate mode (drive tests), the GPS delivers as fast as it can
+    private static final int HIGH_RATE_TIME = 100; // ms
+    private SignalChangeTrigger trigger;
+    // get an update every this many meters (min distance)
+    private volatile long minLocationDistance = 5; // m
+    // get an update every this many milliseconds
+    private volatile long minLocationTime = 5000; // ms
+
+    private LocationManager locationManager;
+    private TelephonyManager telephonyManager;
+    private DataListener dataListener;
+    private final PassiveSource passiveSource = new PassiveSource();
+    private final SingleUpdate singleUpdate = new SingleUpdate();
+    private DeviceState deviceState;
+    private DutyCycleScheduler scheduler;
+    private CaptureGovernor governor;
+    private AlarmManager alarmManager;
+    private PendingIntent wakeUpIntent;
+    // the current mode, null until the first start. Only changed on the main thread
+    private String mode = null;
+    // no wake up alarms and no wake lock in the sleep windows once the active capture stopped
+    private volatile boolean active = false;
+    // the config is applied on the main thread and read by the scheduler on the capture thread
+    private volatile boolean updateOnSignalChange;
+    private volatile boolean highRate;
+    private volatile boolean adaptive;
+    private SharedPreferences preferences;
+    private PowerManager.WakeLock wakeLock;
+
+    /**
+     * Start the service or switch its mode.
+     *
+     * @param mode one of the MODE constants
+     */
+    public static void start(Context context, String mode) {
+        context.startService(new Intent(context, CaptureService.class).putExtra(EXTRA_MODE, mode));
+    }
+
+    /**
+     * @return the mode of the running service, null if it is not running
+     */
+    public static String getMode(Context context) {
+        if (!MobileStatusUtils.isServiceRunning(context, CaptureService.class)) {
+            return null;
+        }
+        return Preferences.getString(context, Preferences.capture_mode, MODE_HYBRID);
+    }
+
+    /**
+     * @return the mode that captures the sources, null for none
+     */
+    public static String toMode(boolean active, boolean passive) {
+        if (active) {
+            return passive ? MODE_HYBRID : MODE_ACTIVE;
+        }
+        return passive ? MODE_PASSIVE : null;
+    }
+
+    public static boolean isActive(String mode) {
+        return MODE_ACTIVE.equals(mode) || MODE_HYBRID.equals(mode);
+    }
+
+    public static boolean isPassive(String mode) {
+        return MODE_PASSIVE.equals(mode) || MODE_HYBRID.equals(mode);
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        Log.i(LOG_TAG, "start service");
+        locationManager = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
+        telephonyManager = (TelephonyManager) getSystemService(Context.TELEPHONY_SERVICE);
+        preferences = PreferenceManager.getDefaultSharedPreferences(this);
+        dataListener = DataListener.getInstance(this);
+        deviceState = DeviceState.get(this);
+        governor = new CaptureGovernor(new CaptureGovernor.Clock() {
+            @Override
+            public long now() {
+                return SystemClock.elapsedRealtime();
+            }
+        }, new StickyBatterySource(this));
+        alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+        // the receiver holds a wake lock until the service started
+        wakeUpIntent = PendingIntent.getBroadcast(this, 0, new Intent(this, WakeUpReceiver.class), 0);
+        // deliver the signal callbacks to the capture thread
+        trigger = CaptureThread.call(new Callable<SignalChangeTrigger>() {
+            @Override
+            public SignalChangeTrigger call() {
+                return new SignalChangeTrigger();
+            }
+        });
+        //
+        // all modes need the signal strengths
+        dataListener.listenSignals(PhoneStateListener.LISTEN_SIGNAL_STRENGTHS);
+
+        apply(CaptureConfig.addListener(this, this));
+        scheduler = new DutyCycleScheduler(new Acquisition());
+        IntentFilter power = new IntentFilter(Intent.ACTION_POWER_CONNECTED);
+        power.addAction(Intent.ACTION_POWER_DISCONNECTED);
+        registerReceiver(powerReceiver, power);
+
+        // keep the phone from going to standby while listening. This disables GPS updates ...
+        PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, LOG_TAG);
+        wakeLock.setReferenceCounted(false);
+    }
+
+    private void apply(CaptureConfig config) {
+        Log.i(LOG_TAG, "apply config");
+        // ensure a minimum value
+        minLocationTime = Math.max(config.minLocationTime, MIN_TIME);
+        minLocationDistance = config.minLocationDistance;
+
+        updateOnSignalChange = config.updateOnSignalChange;
+        trigger.setThreshold(config.triggerThreshold);
+        highRate = config.highRate;
+        adaptive = config.adaptive;
+        governor.setBudget(config.batteryBudget);
+    }
+
+    /**
+     * Register and remove the sources that differ between the current and the new mode. Called on the main thread.
+     */
+    private void setMode(String newMode) {
+        if (newMode.equals(mode)) {
+            return;
+        }
+        Log.i(LOG_TAG, "switch mode from " + mode + " to " + newMode);
+        boolean wasActive = isActive(mode);
+        boolean wasPassive = isPassive(mode);
+        mode = newMode;
+
+        if (isPassive(newMode) && !wasPassive) {
+            locationManager.requestLocationUpdates(LocationManager.PASSIVE_PROVIDER, 0, 0, passiveSource,
+                    CaptureThread.getLooper());
+        } else if (!isPassive(newMode) && wasPassive) {
+            locationManager.removeUpdates(passiveSource);
+        }
+
+        if (isActive(newMode) && !wasActive) {
+            active = true;
+            wakeLock.acquire(governor.getWakeLockTime());
+            scheduler.start();
+        } else if (!isActive(newMode) && wasActive) {
+            stopActive();
+        }
+    }
+
+    /**
+     * Stop the duty cycles, the last stopListening releases the wake lock.
+     */
+    private void stopActive() {
+        active = false;
+        scheduler.stop();
+        alarmManager.cancel(wakeUpIntent);
+        dataListener.setMaxRate(false);
+        if (wakeLock.isHeld()) {
+            wakeLock.release();
+        }
+    }
+
+    /**
+     * Called on the capture thread, GPS status callbacks are delivered to the registering thread.
+     */
+    private void addListener() {
+        long time = minLocationTime;
+        long distance = minLocationDistance;
+        if (highRate || governor.isMaxRate()) {
+            time = HIGH_RATE_TIME;
+            distance = 0;
+        } else if (adaptive) {
+            // the sampler is asked again on every polling cycle
+            AdaptiveSampler sampler = dataListener.getSampler();
+            time = Math.max(sampler.getInterval(), MIN_TIME);
+            distance = sampler.getDistance();
+        }
+        Log.i(LOG_TAG, "add listeners. minTime: " + time + " / min dist: " + distance);
+        if (updateOnSignalChange) {
+            telephonyManager.listen(trigger, PhoneStateListener.LISTEN_SIGNAL_STRENGTHS);
+        }
+        locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, time, distance, dataListener,
+                CaptureThread.getLooper());
+        locationManager.addGpsStatusListener(dataListener);
+    }
+
+    /**
+     * Called on the capture thread.
+     */
+    private void removeListener() {
+        Log.i(LOG_TAG, "remove listeners");
+        telephonyManager.listen(trigger, PhoneStateListener.LISTEN_NONE);
+        trigger.reset();
+        locationManager.removeUpdates(dataListener);
+        locationManager.removeUpdates(singleUpdate);
+        singleUpdate.outstanding = false;
+        locationManager.removeGpsStatusListener(dataListener);
+    }
+
+    /**
+     * We want this service to continue running until it is explicitly stopped, so return sticky.
+     */
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_WAKE_UP.equals(intent.getAction())) {
+            if (mode == null) {
+                // the process was killed in the sleep window, resume the last mode. Starting the active capture
+                // starts with a listen window, so there is nothing left to wake up
+                setMode(preferences.getString(Preferences.capture_mode, MODE_HYBRID));
+            } else if (active) {
+                wakeLock.acquire(governor.getWakeLockTime());
+                scheduler.wakeUp();
+            }
+            WakeUpReceiver.release();
+            return START_STICKY;
+        }
+        String newMode = intent == null ? null : intent.getStringExtra(EXTRA_MODE);
+        if (newMode == null) {
+            // restarted by the system
+            newMode = preferences.getString(Preferences.capture_mode, MODE_HYBRID);
+        } else {
+            preferences.edit().putString(Preferences.capture_mode, newMode).commit();
+        }
+        setMode(newMode);
+        return START_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        Log.i(LOG_TAG, "destroy");
+        if (isActive(mode)) {
+            stopActive();
+        }
+        if (isPassive(mode)) {
+            locationManager.removeUpdates(passiveSource);
+        }
+        mode = null;
+        unregisterReceiver(powerReceiver);
+        dataListener.listenSignals(PhoneStateListener.LISTEN_NONE);
+        dataListener.flush();
+        CaptureConfig.removeListener(this);
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    /**
+     * adb shell dumpsys activity service de.locked.cellmapper/.CaptureService
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("mode: " + mode);
+        Metrics.dump(writer);
+    }
+
+    /**
+     * Only the listeners of the GPS and of the signal trigger depend on the config, re-register them if their
+     * settings changed. A new threshold applies to the next signal change.
+     */
+    @Override
+    public void onConfigChanged(CaptureConfig config, int changes) {
+        apply(config);
+        if (!active) {
+            return;
+        }
+        if ((changes & (CaptureConfig.SAMPLING | CaptureConfig.BUDGET)) != 0) {
+            scheduler.restart();
+        } else if ((changes & CaptureConfig.TRIGGER) != 0) {
+            // the trigger is registered for the listen windows only, switch it without interrupting the cycle
+            CaptureThread.getHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!scheduler.isListening()) {
+                        return;
+                    }
+                    if (updateOnSignalChange) {
+                        telephonyManager.listen(trigger, PhoneStateListener.LISTEN_SIGNAL_STRENGTHS);
+                    } else {
+                        telephonyManager.listen(trigger, PhoneStateListener.LISTEN_NONE);
+                        trigger.reset();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Switch between maximum rate and budgeted capture right away.
+     */
+    private final BroadcastReceiver powerReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Log.i(LOG_TAG, "power connection changed: " + intent.getAction());
+            if (active) {
+                scheduler.restart();
+            }
+        }
+    };
+
+    /**
+     * Windows, poll interval and wake lock as set by the {@link CaptureGovernor}: poll the location every
+     * minLocationTime (or the adaptive interval) spread by the battery budget. In high rate mode, listen
+     * continuously without polling.
+     */
+    class Acquisition implements DutyCycleScheduler.Cycle {
+        @Override
+        public boolean canListen() {
+            governor.update();
+            return deviceState.isGpsEnabled() && !deviceState.isMockLocationEnabled();
+        }
+
+        @Override
+        public void startListening() {
+            alarmManager.cancel(wakeUpIntent);
+            if (governor.holdsWakeLockWhileSleeping()) {
+                wakeLock.acquire();
+            } else {
+                wakeLock.acquire(governor.getWakeLockTime());
+            }
+            dataListener.setMaxRate(governor.isMaxRate());
+            addListener();
+        }
+
+        @Override
+        public void stopListening() {
+            removeListener();
+            if (active && governor.holdsWakeLockWhileSleeping()) {
+                return;
+            }
+            if (active) {
+                // let the CPU sleep, the alarm ends the sleep window
+                alarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                        SystemClock.elapsedRealtime() + governor.getSleepWindow(), wakeUpIntent);
+            }
+            if (wakeLock.isHeld()) {
+                wakeLock.release();
+            }
+        }
+
+        @Override
+        public void poll() {
+            if (singleUpdate.outstanding) {
+                Metrics.inc(Metrics.POLLS_SKIPPED);
+                Log.d(LOG_TAG, "single update still outstanding, skip poll");
+                return;
+            }
+            Log.i(LOG_TAG, "poll location");
+            singleUpdate.outstanding = true;
+            locationManager.requestSingleUpdate(LocationManager.GPS_PROVIDER, singleUpdate,
+                    CaptureThread.getLooper());
+        }
+
+        @Override
+        public long getListenWindow() {
+            // the polling cycle would leave gaps
+            return highRate ? 0 : governor.getListenWindow();
+        }
+
+        @Override
+        public long getSleepWindow() {
+            return governor.getSleepWindow();
+        }
+
+        @Override
+        public long getPollInterval() {
+            if (highRate) {
+                return 0;
+            }
+            long base = adaptive ? Math.max(dataListener.getSampler().getInterval(), MIN_TIME) : minLocationTime;
+            return governor.getPollInterval(base);
+        }
+    }
+
+    /**
+     * Listener that triggers a measurement when the signal strength changes significantly, see {@link SignalTrigger}.
+     */
+    class SignalChangeTrigger extends PhoneStateListener {
+        private final SignalTrigger policy = new SignalTrigger();
+        private final Runnable coalesced = new Runnable() {
+            @Override
+            public void run() {
+                if (policy.fire(SystemClock.uptimeMillis())) {
+                    scheduler.trigger();
+                } else {
+                    Metrics.inc(Metrics.TRIGGERS_SUPPRESSED);
+                }
+            }
+        };
+
+        @Override
+        public void onSignalStrengthsChanged(SignalStrength signalStrength) {
+            long delay = policy.onSignal(signalStrength, SystemClock.uptimeMillis());
+            if (delay == SignalTrigger.SUPPRESS) {
+                Metrics.inc(Metrics.TRIGGERS_SUPPRESSED);
+            } else if (delay == 0) {
+                scheduler.trigger();
+            } else {
+                CaptureThread.getHandler().postDelayed(coalesced, delay);
+            }
+        }
+
+        void setThreshold(int dB) {
+            policy.setThreshold(dB);
+        }
+
+        /**
+         * Called on the capture thread.
+         */
+        void reset() {
+            CaptureThread.getHandler().removeCallbacks(coalesced);
+            policy.reset();
+        }
+    }
+
+    /**
+     * Listener of the location polls. At most one poll is outstanding, further polls are skipped until it delivers
+     * or the listen window ends.
+     */
+    class SingleUpdate implements LocationListener {
+        // only used on the capture thread
+        boolean outstanding = false;
+
+        @Override
+        public void onLocationChanged(Location location) {
+            outstanding = false;
+            dataListener.onLocationChanged(location);
+        }
+
+        @Override
+        public void onProviderDisabled(String provider) {
+        }
+
+        @Override
+        public void onProviderEnabled(String provider) {
+        }
+
+        @Override
+        public void onStatusChanged(String provider, int status, Bundle extras) {
+        }
+    }
+
+    /**
+     * Registration of the passive provider. It has a listener of its own, so removing the GPS updates of the active
+     * capture doesn't remove it.
+     */
+    class PassiveSource implements LocationListener {
+        @Override
+        public void onLocationChanged(Location location) {
+            dataListener.onLocationChanged(location);
+        }
+
+        @Override
+        public void onProviderDisabled(String provider) {
+        }
+
+        @Override
+        public void onProviderEnabled(String provider) {
+        }
+
+        @Override
+        public void onStatusChanged(String provider, int status, Bundle extras) {
+        }
+    }
+}
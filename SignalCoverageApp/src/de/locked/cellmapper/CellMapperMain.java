@@ -20,13 +20,17 @@ import android.view.View.OnClickListener;
 import android.widget.TextView;
 import android.widget.ToggleButton;
 
+import java.util.Map;
+
 import com.actionbarsherlock.app.SherlockActivity;
 import com.actionbarsherlock.view.Menu;
 import com.actionbarsherlock.view.MenuItem;
 
 import de.locked.cellmapper.exporter.FileExporter;
 import de.locked.cellmapper.exporter.UrlExporter;
-import de.locked.cellmapper.model.DbHandler;
+import de.locked.cellmapper.model.MeasurementStore;
+import de.locked.cellmapper.model.Metrics;
+import de.locked.cellmapper.model.MeasurementStores;
 import de.locked.cellmapper.model.MobileStatusUtils;
 import de.locked.cellmapper.model.Preferences;
 
@@ -36,7 +40,6 @@ public class CellMapperMain extends SherlockActivity {
     private final Handler handler = new Handler();
     private Thread refresher;
     private boolean informedUserAboutProblems = false;
-    private DbHandler db;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -45,34 +48,26 @@ public class CellMapperMain extends SherlockActivity {
 
         // set defaults
         PreferenceManager.setDefaultValues(this, R.xml.preferences, false);
-        db = DbHandler.get(this);
 
         ((ToggleButton) findViewById(R.id.activeToggleButton)).setOnClickListener(new OnClickListener() {
 
             @Override
             public void onClick(View arg0) {
-                if (((ToggleButton) arg0).isChecked()) {
-                    ensureServiceStarted();
-                } else {
-                    stopActiveService();
-                }
+                String mode = CaptureService.getMode(CellMapperMain.this);
+                setCapture(((ToggleButton) arg0).isChecked(), CaptureService.isPassive(mode));
             }
         });
         ((ToggleButton) findViewById(R.id.passiveToggleButton)).setOnClickListener(new OnClickListener() {
 
             @Override
             public void onClick(View arg0) {
-                if (((ToggleButton) arg0).isChecked()) {
-                    startPassiveService();
-                } else {
-                    stopPassiveService();
-                }
+                String mode = CaptureService.getMode(CellMapperMain.this);
+                setCapture(CaptureService.isActive(mode), ((ToggleButton) arg0).isChecked());
             }
         });
 
         startUiUpdates();
-        ensureServiceStarted();
-        startPassiveService();
+        setCapture(true, true);
     }
 
     @Override
@@ -100,22 +95,37 @@ public class CellMapperMain extends SherlockActivity {
     public void onDestroy() {
         super.onDestroy();
         Log.i(LOG_TAG, "destroy activity");
-        stopActiveService();
+        stopCapture();
         stopUiUpdates();
-        stopPassiveService();
-        db.close();
+        MeasurementStores.get(this).close();
     }
 
-    private void stopActiveService() {
-        boolean success = stopService(new Intent(this, ActiveListenerService.class));
+    private void stopCapture() {
+        boolean success = stopService(new Intent(this, CaptureService.class));
         Log.i(LOG_TAG, "stopping service succeeded: " + success);
     }
 
-    private void ensureServiceStarted() {
-        Log.d(LOG_TAG, "ensuring that the service is up");
-        if (MobileStatusUtils.isServiceRunning(this, ActiveListenerService.class)) {
+    /**
+     * Start, stop or switch the capture service. The active capture is only started if GPS can be used.
+     */
+    private void setCapture(boolean active, boolean passive) {
+        if (active && !canCaptureActively()) {
+            active = false;
+        }
+        String mode = CaptureService.toMode(active, passive);
+        if (mode == null) {
+            stopCapture();
             return;
         }
+        Log.i(LOG_TAG, "capture mode: " + mode);
+        CaptureService.start(this, mode);
+    }
+
+    private boolean canCaptureActively() {
+        Log.d(LOG_TAG, "ensuring that the active capture can run");
+        if (CaptureService.isActive(CaptureService.getMode(this))) {
+            return true;
+        }
 
         // Fake location enabled?
         if (MobileStatusUtils.fakeLocationEnabled(this)){
@@ -126,7 +136,7 @@ public class CellMapperMain extends SherlockActivity {
                     startActivity(new Intent(Settings.ACTION_LOCATION_SOURCE_SETTINGS));
                 }
             });
-            return;
+            return false;
         }
 
         // check if location check is allowed at all
@@ -135,29 +145,15 @@ public class CellMapperMain extends SherlockActivity {
             String msg = "Positioning is completely disabled in your device. Please enable it.";
             Log.i(LOG_TAG, msg);
             maybeShowGPSDisabledAlertToUser(msg);
-            return;
+            return false;
         }
 
         // GPS disabled
         if (!MobileStatusUtils.gpsEnabled(this)) {
             maybeShowGPSDisabledAlertToUser("GPS is disabled in your device. Please enable it.");
-            return;
+            return false;
         }
-
-        // now start!
-        Log.i(LOG_TAG, "starting service");
-        startService(new Intent(this, ActiveListenerService.class));
-    }
-
-    private void startPassiveService() {
-        if (MobileStatusUtils.isServiceRunning(this, PassiveListenerService.class)) {
-            return;
-        }
-        startService(new Intent(this, PassiveListenerService.class));
-    }
-
-    private void stopPassiveService() {
-        stopService(new Intent(this, PassiveListenerService.class));
+        return true;
     }
 
     private void startUiUpdates() {
@@ -184,15 +180,20 @@ public class CellMapperMain extends SherlockActivity {
 
             private void refresh() {
                 final StringBuilder sb = new StringBuilder(300);
-                sb.append("Active  service running: " + MobileStatusUtils.isServiceRunning(context, ActiveListenerService.class) + "\n");
-                sb.append("Passive service running: " + MobileStatusUtils.isServiceRunning(context, PassiveListenerService.class) + "\n");
+                MeasurementStore db = MeasurementStores.get(context);
+                String mode = CaptureService.getMode(context);
+                sb.append("Capture mode: " + (mode == null ? "stopped" : mode) + "\n");
                 sb.append(db.getLastEntryString()).append("\n");
                 sb.append("Data rows: " + db.getRows()).append("\n");
+                for (Map.Entry<String, Integer> carrier : db.getRowsPerCarrier().entrySet()) {
+                    sb.append("  " + carrier.getKey() + ": " + carrier.getValue()).append("\n");
+                }
+                sb.append(Metrics.summary()).append("\n");
                 sb.append("------\n");
                 sb.append(db.getLastRowAsString());
 
-                final boolean isActiveRunning = MobileStatusUtils.isServiceRunning(context, ActiveListenerService.class);
-                final boolean isPassiveRunning = MobileStatusUtils.isServiceRunning(context, PassiveListenerService.class);
+                final boolean isActiveRunning = CaptureService.isActive(mode);
+                final boolean isPassiveRunning = CaptureService.isPassive(mode);
 
                 // update UI
                 handler.post(new Runnable() {
@@ -232,11 +233,19 @@ public class CellMapperMain extends SherlockActivity {
                 return true;
 
             case R.id.menu_upload:
-                upload();
+                upload(false);
+                return true;
+
+            case R.id.menu_uploadFull:
+                upload(true);
                 return true;
 
             case R.id.menu_saveSD:
-                new FileExporter(this, "SignalStrength/data").execute();
+                new FileExporter(this, "SignalStrength/data", false).execute();
+                return true;
+
+            case R.id.menu_saveSDFull:
+                new FileExporter(this, "SignalStrength/data", true).execute();
                 return true;
 
             case R.id.menu_onlineAccount:
@@ -258,7 +267,10 @@ public class CellMapperMain extends SherlockActivity {
         }
     }
 
-    private void upload() {
+    /**
+     * @param full true to upload all data again, false to upload only the data that is new since the last upload
+     */
+    private void upload(boolean full) {
         Log.i(LOG_TAG, "upload data");
 
         final SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
@@ -285,7 +297,7 @@ public class CellMapperMain extends SherlockActivity {
             return;
         }
 
-        new UrlExporter(this).execute();
+        new UrlExporter(this, full).execute();
     }
 
     /**
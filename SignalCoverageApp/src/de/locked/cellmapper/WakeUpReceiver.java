@@ -0,0 +1,45 @@
+package de.locked.cellmapper;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.PowerManager;
+import android.util.Log;
+
+/**
+ * Receives the alarm that ends a sleep window of the {@link CaptureService}. The alarm manager keeps the CPU awake
+ * only while onReceive runs, so the receiver takes a wake lock before it starts the service. The service releases it
+ * with {@link #release()} once it holds its own wake lock.
+ */
+public class WakeUpReceiver extends BroadcastReceiver {
+    private static final String LOG_TAG = WakeUpReceiver.class.getName();
+    // in case the service never gets to release it
+    private static final long TIMEOUT = 60 * 1000; // ms
+
+    private static PowerManager.WakeLock wakeLock = null;
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        acquire(context);
+        Log.d(LOG_TAG, "wake up");
+        context.startService(new Intent(context, CaptureService.class).setAction(CaptureService.ACTION_WAKE_UP));
+    }
+
+    private static synchronized void acquire(Context context) {
+        if (wakeLock == null) {
+            PowerManager pm = (PowerManager) context.getApplicationContext().getSystemService(Context.POWER_SERVICE);
+            wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, LOG_TAG);
+            wakeLock.setReferenceCounted(false);
+        }
+        wakeLock.acquire(TIMEOUT);
+    }
+
+    /**
+     * Called by the service once it handled the wake up.
+     */
+    static synchronized void release() {
+        if (wakeLock != null && wakeLock.isHeld()) {
+            wakeLock.release();
+        }
+    }
+}
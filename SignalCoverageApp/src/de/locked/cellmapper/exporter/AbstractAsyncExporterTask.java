@@ -6,27 +6,34 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
 import android.os.AsyncTask;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.TaskStackBuilder;
+import android.util.Log;
 import de.locked.cellmapper.CellMapperMain;
 import de.locked.cellmapper.R;
-import de.locked.cellmapper.model.DbHandler;
+import de.locked.cellmapper.model.MeasurementBuffer;
+import de.locked.cellmapper.model.MeasurementStore;
+import de.locked.cellmapper.model.MeasurementStores;
+import de.locked.cellmapper.model.StreamingCursor;
 
 /**
  * Async task that queries the database and saves the result using the
- * DataExporter while updating the given progress bar
+ * DataExporter while updating the given progress bar.
+ * <p/>
+ * For every destination the time of the last exported row is remembered, so that only new rows are exported
+ * unless a full export is requested.
  */
 public abstract class AbstractAsyncExporterTask extends AsyncTask<Void, Integer, Void> {
-    @SuppressWarnings("unused")
     private static final String LogTag = AbstractAsyncExporterTask.class.getName();
     private final Context context;
     private final String message;
     private final int icon;
     //
-    protected final Cursor cursor;
-    protected final int max;
+    protected final MeasurementStore db;
+    protected final boolean full;
+    protected StreamingCursor cursor;
+    protected int max;
     private final String headline;
     private final int notificationId;
 
@@ -34,13 +41,13 @@ public abstract class AbstractAsyncExporterTask extends AsyncTask<Void, Integer,
      * @param c the context
      * @param messageId the R.message.id
      * @param icon the icon id
+     * @param full true to export all rows, false to export only the rows that are new since the last export
      */
-    public AbstractAsyncExporterTask(Context c, int messageId, int icon) {
+    public AbstractAsyncExporterTask(Context c, int messageId, int icon, boolean full) {
         this.context = c;
         this.icon = icon;
-        DbHandler db = DbHandler.get(context);
-        this.cursor = db.getAll();
-        this.max = db.getRows();
+        this.full = full;
+        this.db = MeasurementStores.get(context);
         this.message = c.getString(messageId);
         this.headline = c.getString(R.string.exportNotificationHeadline);
         this.notificationId = new Random().nextInt();
@@ -50,6 +57,33 @@ public abstract class AbstractAsyncExporterTask extends AsyncTask<Void, Integer,
         return context;
     }
 
+    /**
+     * Opens {@link #cursor} on the rows to export and sets {@link #max} accordingly. Call from the background.
+     *
+     * @param destination the destination the rows are exported to
+     * @param full true to export all rows, false for the rows after the watermark of the destination
+     */
+    protected void openCursor(String destination, boolean full) {
+        // export what has been measured so far. Writes synchronously and may wait for the writer thread, so not in
+        // the constructor, which runs on the main thread
+        MeasurementBuffer.get(context).flush();
+        long from = full ? 0 : db.getWatermark(destination) + 1;
+        // rows that are written during the export belong to the next one
+        long to = db.getLastTime() + 1;
+        Log.i(LogTag, "exporting rows from time " + from + " to " + to + " to " + destination);
+        this.max = Math.max(1, db.getRows(from));
+        this.cursor = db.stream(null, from, to);
+    }
+
+    /**
+     * Remember that all rows up to the given time have been exported to the destination. A later incremental
+     * export continues after this row.
+     */
+    protected void commit(String destination, long time) {
+        Log.d(LogTag, "export to " + destination + " committed up to time " + time);
+        db.setWatermark(destination, time);
+    }
+
     @Override
     protected void onProgressUpdate(Integer... i) {
         notify(String.format(message, i[0]));
@@ -1,57 +1,91 @@
 package de.locked.cellmapper.exporter;
 
 import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FileReader;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
 
 import android.content.Context;
 import android.os.Environment;
 import android.util.Log;
 import de.locked.cellmapper.R;
+import de.locked.cellmapper.model.Metrics;
+import de.locked.cellmapper.model.SignalVector;
 
 public class FileExporter extends AbstractAsyncExporterTask {
     private static final String LOG_TAG = FileExporter.class.getName();
     private final String fileName;
 
-    public FileExporter(Context context, String fileName) {
-        super(context, R.string.exportNotificationSd, android.R.drawable.ic_menu_save);
+    public FileExporter(Context context, String fileName, boolean full) {
+        super(context, R.string.exportNotificationSd, android.R.drawable.ic_menu_save, full);
         this.fileName = fileName;
     }
 
     @Override
     protected Void doInBackground(Void... params) {
+        String destination = "file:" + fileName;
+        CsvFile csv = null;
+        KmlFile kml = null;
+        boolean success = false;
         try {
             File root = Environment.getExternalStorageDirectory();
             if (!root.canWrite()) {
                 return null;
             }
 
-            CsvFile csv = new CsvFile(fileName + ".csv");
-            KmlFile kml = new KmlFile(fileName + ".kml");
+            // continue the existing files only if they are intact and were exported from this store,
+            // otherwise start over
+            File csvFile = new File(root, fileName + ".csv");
+            File kmlFile = new File(root, fileName + ".kml");
+            boolean append = !full && db.getWatermark(destination) >= 0 && csvFile.exists()
+                    && KmlFile.isComplete(kmlFile);
+            openCursor(destination, !append);
+            if (append && !Arrays.equals(CsvFile.readHead(csvFile), cursor.getColumnNames())) {
+                Log.i(LOG_TAG, "columns changed since the last export, export all rows again");
+                cursor.close();
+                append = false;
+                openCursor(destination, true);
+            }
+
+            csv = new CsvFile(csvFile, append);
+            kml = new KmlFile(kmlFile, append);
 
             // select all data and dump it
+            long start = System.currentTimeMillis();
             int n = 0;
+            int time = cursor.getColumnIndex("time");
+            // stationary runs are kept as one row with start time and sample count
+            int startTime = cursor.getColumnIndex("startTime");
+            int signals = cursor.getColumnIndex(SignalVector.COLUMN);
             int latitude = cursor.getColumnIndex("latitude");
             int longitude = cursor.getColumnIndex("longitude");
             int accuracy = cursor.getColumnIndex("accuracy");
             int signalStrength = cursor.getColumnIndex("signalStrength");
 
             List<String> values = new ArrayList<String>();
+            if (!append) {
+                csv.writeHead(cursor.getColumnNames());
+            }
             while (cursor.moveToNext() && !isCancelled()) {
-                // write header
-                if (n == 0) {
-                    csv.writeHead(cursor.getColumnNames());
-                }
-
                 // Write values
                 values.clear();
                 for (int i = 0; i < cursor.getColumnCount(); i++) {
-                    values.add(cursor.getString(i));
+                    if (i == time || i == startTime) {
+                        values.add(toSeconds(cursor.getLong(i)));
+                    } else if (i == signals) {
+                        values.add(SignalVector.toString(cursor.getBlob(i)));
+                    } else {
+                        values.add(cursor.getString(i));
+                    }
                 }
                 csv.addLine(values);
 
@@ -62,28 +96,99 @@ public class FileExporter extends AbstractAsyncExporterTask {
                 // logging
                 if (n % 40 == 0) {
                     Log.d(LOG_TAG, "wrote " + n + "lines");
-                    publishProgress(n * 100 / max);
+                    publishProgress(Math.min(100, n * 100 / max));
                 }
             }
             Log.i(LOG_TAG, "wrote " + n + "lines");
+            Metrics.add(Metrics.ROWS_EXPORTED, n);
+            Metrics.add(Metrics.EXPORT_TIME, System.currentTimeMillis() - start);
 
             csv.close();
             kml.close();
-            cursor.close();
+            if (!isCancelled()) {
+                if (n > 0) {
+                    commit(destination, cursor.getTime());
+                }
+                success = true;
+            }
         } catch (IOException e) {
             notify("Encountered an issue: " + e.getMessage(), android.R.drawable.stat_notify_error);
             return null;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+            // remove the rows of this run, so the next run starts at the watermark again
+            if (!success) {
+                rollback(csv);
+                rollback(kml);
+            }
         }
 
         publishProgress(100);
         return null;
     }
 
-    class KmlOutputStream extends FilterOutputStream {
+    /**
+     * The csv files count in seconds, keep that for files that are continued and add the milliseconds as
+     * fraction.
+     */
+    private static String toSeconds(long time) {
+        return String.format(Locale.US, "%d.%03d", time / 1000, time % 1000);
+    }
+
+    private void rollback(Rollbackable file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            file.rollback();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "could not roll back export: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @param dest the file
+     * @param append true to open the file for appending
+     * @return the file to write to
+     */
+    private static File prepare(File dest, boolean append) throws IOException {
+        File root = Environment.getExternalStorageDirectory();
+        if (!root.canWrite()) {
+            Log.e(LOG_TAG, "can't write to SD root: " + root.getAbsolutePath());
+            throw new IOException("sd not writable");
+        }
+
+        if (!append || !dest.exists()) {
+            dest.getParentFile().mkdirs();
+            dest.createNewFile();
+            Log.i(LOG_TAG, "created " + dest.getAbsolutePath());
+        }
+        return dest;
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    interface Rollbackable {
+        /**
+         * Close the file and remove everything that was written since it was opened.
+         */
+        void rollback() throws IOException;
+    }
+
+    static class KmlOutputStream extends FilterOutputStream {
         int offset = 0;
 
-        public KmlOutputStream(File dest) throws IOException {
-            super(new BufferedOutputStream(new FileOutputStream(dest, false), 100 * 1024));
+        public KmlOutputStream(File dest, boolean append) throws IOException {
+            super(new BufferedOutputStream(new FileOutputStream(dest, append), 100 * 1024));
         }
 
         public void append(String s) throws IOException {
@@ -101,8 +206,13 @@ public class FileExporter extends AbstractAsyncExporterTask {
         }
     }
 
-    class KmlFile {
+    static class KmlFile implements Rollbackable {
+        private static final String FOOTER = "</Folder>\n" + //
+                "</kml>";
 
+        private final File dest;
+        // length of the file before this export
+        private final long start;
         private final KmlOutputStream os;
         // http://www.ig.utexas.edu/outreach/googleearth/latlong.html
         private final double mToDegree = 0.00001;
@@ -112,24 +222,45 @@ public class FileExporter extends AbstractAsyncExporterTask {
         // replace signalstrength > threshold by this value
         private final int defaultSignalStrength = 0;
 
-        public KmlFile(String fileName) throws IOException {
-            File root = Environment.getExternalStorageDirectory();
-            if (!root.canWrite()) {
-                Log.e(LOG_TAG, "can't write to SD root: " + root.getAbsolutePath());
-                throw new IOException("sd not writable");
+        /**
+         * @param dest the file
+         * @param append true to add points to the complete kml file, false to start a new one
+         */
+        public KmlFile(File dest, boolean append) throws IOException {
+            this.dest = prepare(dest, append);
+            if (append) {
+                // cut the footer, it's written again on close
+                start = dest.length() - FOOTER.getBytes().length;
+                truncate(dest, start);
+                os = new KmlOutputStream(dest, true);
+            } else {
+                start = 0;
+                os = new KmlOutputStream(dest, false);
+                os.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" + //
+                        "<kml xmlns=\"http://www.opengis.net/kml/2.2\">\n" + //
+                        "<Folder>\n" + //
+                        "  <name>Signalstrength</name>\n" + //
+                        "  <open>1</open>\n");
             }
+        }
 
-            File dest = new File(root, fileName);
-            dest.getParentFile().mkdirs();
-            dest.createNewFile();
-            Log.i(LOG_TAG, "created " + dest.getAbsolutePath());
-
-            os = new KmlOutputStream(dest);
-            os.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" + //
-                    "<kml xmlns=\"http://www.opengis.net/kml/2.2\">\n" + //
-                    "<Folder>\n" + //
-                    "  <name>Signalstrength</name>\n" + //
-                    "  <open>1</open>\n");
+        /**
+         * @return true if the file exists and ends with the footer
+         */
+        static boolean isComplete(File file) throws IOException {
+            byte[] footer = FOOTER.getBytes();
+            if (!file.exists() || file.length() < footer.length) {
+                return false;
+            }
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                byte[] tail = new byte[footer.length];
+                raf.seek(file.length() - footer.length);
+                raf.readFully(tail);
+                return Arrays.equals(footer, tail);
+            } finally {
+                raf.close();
+            }
         }
 
         public void addPoint(float longitude, float latitude, float signalStrength, float accuracy) throws IOException {
@@ -169,30 +300,39 @@ public class FileExporter extends AbstractAsyncExporterTask {
 
         public void close() throws IOException {
             if (os != null) {
-                os.append("</Folder>\n" + //
-                        "</kml>");
+                os.append(FOOTER);
                 os.close();
             }
         }
+
+        @Override
+        public void rollback() throws IOException {
+            os.close();
+            truncate(dest, start);
+            if (start > 0) {
+                // restore the footer of the previous export
+                KmlOutputStream restore = new KmlOutputStream(dest, true);
+                restore.append(FOOTER);
+                restore.close();
+            }
+        }
     }
 
-    class CsvFile {
+    static class CsvFile implements Rollbackable {
 
+        private final File dest;
+        // length of the file before this export
+        private final long start;
         private final OutputStreamWriter os;
 
-        public CsvFile(String fileName) throws IOException {
-            File root = Environment.getExternalStorageDirectory();
-            if (!root.canWrite()) {
-                Log.e(LOG_TAG, "can't write to SD root: " + root.getAbsolutePath());
-                throw new IOException("sd not writable");
-            }
-
-            File dest = new File(root, fileName);
-            dest.getParentFile().mkdirs();
-            dest.createNewFile();
-            Log.i(LOG_TAG, "created " + dest.getAbsolutePath());
-
-            os = new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(dest, false), 50 * 1024));
+        /**
+         * @param dest the file
+         * @param append true to add lines to the file, false to start a new one
+         */
+        public CsvFile(File dest, boolean append) throws IOException {
+            this.dest = prepare(dest, append);
+            this.start = append ? dest.length() : 0;
+            os = new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(dest, append), 50 * 1024));
         }
 
         public void addLine(List<String> values) throws IOException {
@@ -202,6 +342,20 @@ public class FileExporter extends AbstractAsyncExporterTask {
             os.append("\n");
         }
 
+        /**
+         * @return the column names of the header line, null if the file is empty
+         */
+        static String[] readHead(File file) throws IOException {
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            try {
+                String line = reader.readLine();
+                // every name is followed by the separator
+                return line == null || line.length() == 0 ? null : line.split(";");
+            } finally {
+                reader.close();
+            }
+        }
+
         public void writeHead(String[] columnNames) throws IOException {
             for (String name : columnNames) {
                 os.append(name).append(";");
@@ -214,6 +368,12 @@ public class FileExporter extends AbstractAsyncExporterTask {
                 os.close();
             }
         }
+
+        @Override
+        public void rollback() throws IOException {
+            os.close();
+            truncate(dest, start);
+        }
     }
 
 }
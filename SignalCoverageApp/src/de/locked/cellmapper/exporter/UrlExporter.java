@@ -16,6 +16,7 @@ import java.util.Collection;
 
 import de.locked.B64.Base64;
 import de.locked.cellmapper.R;
+import de.locked.cellmapper.model.Metrics;
 import de.locked.cellmapper.model.Preferences;
 import de.locked.signalcoverage.share.ApiData;
 import de.locked.signalcoverage.share.ApiUser;
@@ -26,8 +27,8 @@ public class UrlExporter extends AbstractAsyncExporterTask {
     private final SharedPreferences preferences;
     private final int chunksize = 100;
 
-    public UrlExporter(Context context) {
-        super(context, R.string.exportNotificationUrl, android.R.drawable.ic_menu_upload);
+    public UrlExporter(Context context, boolean full) {
+        super(context, R.string.exportNotificationUrl, android.R.drawable.ic_menu_upload, full);
 
         preferences = PreferenceManager.getDefaultSharedPreferences(context);
         String baseURL = preferences.getString(Preferences.uploadURL, null);
@@ -42,6 +43,10 @@ public class UrlExporter extends AbstractAsyncExporterTask {
         return cursor.getInt(cursor.getColumnIndex(col));
     }
 
+    private long getLong(String col) {
+        return cursor.getLong(cursor.getColumnIndex(col));
+    }
+
     private double getDouble(String col) {
         return cursor.getDouble(cursor.getColumnIndex(col));
     }
@@ -62,50 +67,84 @@ public class UrlExporter extends AbstractAsyncExporterTask {
             if (user == null) {
                 return null;
             }
+            String destination = "url:" + preferences.getString(Preferences.uploadURL, "") + "#" + user.getUserId();
+            openCursor(destination, full);
 
             // build the data list
             int i = 0;
             Collection<ApiData> dataList = new ArrayList<ApiData>(chunksize);
+            int startTime = cursor.getColumnIndex("startTime");
+            int samples = cursor.getColumnIndex("samples");
+            long previous = -1;
             while (cursor.moveToNext() && !isCancelled()) {
-                ApiData data = new ApiData();
-                data.setTime(getInt("time"));
-                data.setAccuracy(getDouble("accuracy"));
-                data.setAltitude(getFloat("altitude"));
-                data.setSatellites(getInt("satellites"));
-                data.setLatitude(getDouble("latitude"));
-                data.setLongitude(getDouble("longitude"));
-                data.setSpeed(getDouble("speed"));
-                data.setSignalStrength(getInt("signalStrength"));
-                data.setCarrier(getString("carrier"));
-                data.setAndroidRelease(getString("androidRelease"));
-                data.setManufacturer(getString("manufacturer"));
-                data.setModel(getString("model"));
-                data.setDevice(getString("device"));
-                data.setOsVersion(getString("osVersion"));
-                dataList.add(data);
-                i++;
-
-                if (dataList.size() == chunksize) {
+                long end = getLong("time");
+                // the watermark covers all rows of a time, so a full chunk is only sent before the next fix
+                if (dataList.size() >= chunksize && end != previous) {
                     upload(user, dataList, i);
+                    commit(destination, previous);
+                }
+                previous = end;
+
+                // the service expects single fixes, expand stationary runs to samples spread over the run
+                long start = startTime < 0 ? end : cursor.getLong(startTime);
+                int n = samples < 0 ? 1 : Math.max(1, cursor.getInt(samples));
+                for (int s = 0; s < n; s++) {
+                    long time = n == 1 ? end : start + (end - start) * s / (n - 1);
+                    dataList.add(toApiData(time));
                 }
+                i++;
             }
-            cursor.close();
-            if (!dataList.isEmpty()) {
+            if (!dataList.isEmpty() && !isCancelled()) {
                 upload(user, dataList, i);
+                commit(destination, cursor.getTime());
             }
         } catch (Exception e) {
             Log.e(LOG_TAG, "Encountered an issue: " + e.getMessage(), e);
             notify("Encountered an issue: " + e.getMessage(), android.R.drawable.stat_notify_error);
             return null;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
         }
         publishProgress(100);
         return null;
     }
 
+    /**
+     * @param time of the fix (ms)
+     * @return the current row with the given time
+     */
+    private ApiData toApiData(long time) {
+        ApiData data = new ApiData();
+        // the service counts in seconds, the db in milliseconds
+        data.setTime(time / 1000);
+        data.setAccuracy(getDouble("accuracy"));
+        data.setAltitude(getFloat("altitude"));
+        data.setSatellites(getInt("satellites"));
+        data.setLatitude(getDouble("latitude"));
+        data.setLongitude(getDouble("longitude"));
+        data.setSpeed(getDouble("speed"));
+        data.setSignalStrength(getInt("signalStrength"));
+        data.setCarrier(getString("carrier"));
+        data.setAndroidRelease(getString("androidRelease"));
+        data.setManufacturer(getString("manufacturer"));
+        data.setModel(getString("model"));
+        data.setDevice(getString("device"));
+        data.setOsVersion(getString("osVersion"));
+        return data;
+    }
+
     private void upload(ApiUser user, Collection<ApiData> dataList, int i) throws IOException, URISyntaxException {
+        long start = System.nanoTime();
         int statusCode = rest.putData(user, dataList);
+        Metrics.recordSince(Metrics.UPLOAD_REQUEST, start);
+        Metrics.add(Metrics.UPLOAD_TIME, (System.nanoTime() - start) / 1000000);
+        if (statusCode == 200) {
+            Metrics.add(Metrics.ROWS_UPLOADED, dataList.size());
+        }
         dataList.clear();
-        publishProgress(i * 100 / max);
+        publishProgress(Math.min(100, i * 100 / max));
 
         if (statusCode != 200) {
             String message = "Upload error, status code: " + statusCode;
@@ -0,0 +1,109 @@
+package de.locked.cellmapper.model;
+
+import android.location.Location;
+
+/**
+ * Adapts the location request interval and the acceptance thresholds to the situation. The wanted spacing of
+ * samples is between the min distance (fluctuating signal) and STABLE_FACTOR times that (stable signal), but never
+ * finer than the fix accuracy. The interval is the time needed to travel that spacing at the current speed. When
+ * standing still, the interval moves from the min time (fluctuating signal) to the max time (stable signal).
+ * <p/>
+ * The signal is tracked as exponentially weighted mean and variance of the signal level in dBm.
+ */
+public class AdaptiveSampler {
+    // speed below which the device is considered to be standing still
+    private static final float STANDING_SPEED = 0.5f; // m/s
+    // a signal standard deviation of this much halves the spacing
+    private static final double SIGNAL_REFERENCE = 4; // dB
+    private static final double STABLE_FACTOR = 5;
+    private static final double SIGNAL_WEIGHT = 0.1;
+    // used if the min distance is off
+    private static final long DEFAULT_DISTANCE = 50; // m
+    // accept fixes that arrive slightly early
+    private static final double JITTER = 0.9;
+
+    // bounds
+    private long minTime = 5000; // ms
+    private long maxTime = 300000; // ms
+    private long minDistance = DEFAULT_DISTANCE; // m
+    // state
+    private float speed = 0; // m/s
+    private float accuracy = 0; // m
+    private boolean hasSignal = false;
+    private double signalMean = 0; // dBm
+    private double signalVariance = 0;
+    // result
+    private long interval = maxTime;
+    private double distance = DEFAULT_DISTANCE * STABLE_FACTOR;
+
+    synchronized void setBounds(long minTime, long maxTime, long minDistance) {
+        this.minTime = minTime;
+        this.maxTime = Math.max(minTime, maxTime);
+        this.minDistance = minDistance > 0 ? minDistance : DEFAULT_DISTANCE;
+        update();
+    }
+
+    synchronized void onLocation(Location location) {
+        speed = location.hasSpeed() ? location.getSpeed() : 0;
+        accuracy = location.hasAccuracy() ? location.getAccuracy() : 0;
+        update();
+    }
+
+    synchronized void onSignal(SignalVector signal) {
+        int dbm = signal.getLevel();
+        if (dbm == SignalVector.NO_LEVEL) {
+            return;
+        }
+        if (!hasSignal) {
+            hasSignal = true;
+            signalMean = dbm;
+            signalVariance = 0;
+        } else {
+            double diff = dbm - signalMean;
+            signalMean += SIGNAL_WEIGHT * diff;
+            signalVariance = (1 - SIGNAL_WEIGHT) * (signalVariance + SIGNAL_WEIGHT * diff * diff);
+        }
+        update();
+    }
+
+    private void update() {
+        // 1 for a stable signal, towards 0 for a fluctuating one
+        double stability = SIGNAL_REFERENCE / (SIGNAL_REFERENCE + Math.sqrt(signalVariance));
+        distance = Math.max(minDistance * (1 + (STABLE_FACTOR - 1) * stability), accuracy);
+        long time;
+        if (speed < STANDING_SPEED) {
+            time = minTime + (long) ((maxTime - minTime) * stability);
+        } else {
+            time = (long) (distance / speed * 1000);
+        }
+        interval = Math.max(minTime, Math.min(maxTime, time));
+    }
+
+    /**
+     * @return the interval to request locations with (ms)
+     */
+    public synchronized long getInterval() {
+        return interval;
+    }
+
+    /**
+     * @return the wanted distance between samples (m)
+     */
+    public synchronized long getDistance() {
+        return (long) distance;
+    }
+
+    /**
+     * A fix is accepted once the interval has passed and it is the wanted distance away from the last accepted one.
+     * When standing still, a fix is accepted every max time.
+     *
+     * @param elapsed time since the last accepted fix (ms)
+     * @param moved   distance to the last accepted fix (m)
+     */
+    synchronized boolean accept(long elapsed, float moved) {
+        if (elapsed < interval * JITTER) {
+            return false;
+        }
+        return moved >= distance * JITTER || elapsed >= maxTime * JITTER;
+    }
+}
@@ -0,0 +1,31 @@
+package de.locked.cellmapper.model;
+
+/**
+ * Rectangular area in WGS84 coordinates. Boxes that cross the 180th meridian are not supported.
+ */
+public class BoundingBox {
+    public final double minLatitude;
+    public final double minLongitude;
+    public final double maxLatitude;
+    public final double maxLongitude;
+
+    public BoundingBox(double minLatitude, double minLongitude, double maxLatitude, double maxLongitude) {
+        if (minLatitude > maxLatitude || minLongitude > maxLongitude) {
+            throw new IllegalArgumentException("min must not be greater than max");
+        }
+        this.minLatitude = minLatitude;
+        this.minLongitude = minLongitude;
+        this.maxLatitude = maxLatitude;
+        this.maxLongitude = maxLongitude;
+    }
+
+    public boolean contains(double latitude, double longitude) {
+        return latitude >= minLatitude && latitude <= maxLatitude
+                && longitude >= minLongitude && longitude <= maxLongitude;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + minLatitude + "," + minLongitude + " - " + maxLatitude + "," + maxLongitude + "]";
+    }
+}
@@ -0,0 +1,163 @@
+package de.locked.cellmapper.model;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Immutable snapshot of the capture settings. The preferences are parsed once per change into a new snapshot, which
+ * is compared with the previous one. {@link Listener}s get the groups of settings that differ, so they only
+ * re-register what is affected. Changes of other preferences (login, capture mode, ...) are not reported.
+ */
+public class CaptureConfig {
+    private static final String LOG_TAG = CaptureConfig.class.getName();
+
+    // groups of settings, see diff
+    // min time, min distance, high rate, adaptive sampling and its max time
+    public static final int SAMPLING = 1;
+    // additional polls on signal changes
+    public static final int TRIGGER = 1 << 1;
+    public static final int TRIGGER_THRESHOLD = 1 << 2;
+    public static final int BUDGET = 1 << 3;
+    public static final int MATCHING = 1 << 4;
+    public static final int COMPRESSION = 1 << 5;
+    // batch size and interval of the measurement buffer
+    public static final int WRITE = 1 << 6;
+    public static final int RETENTION = 1 << 7;
+    public static final int ALL = (1 << 8) - 1;
+
+    /**
+     * Called on the main thread.
+     */
+    public interface Listener {
+        /**
+         * @param changes the groups of settings that differ from the previous snapshot
+         */
+        void onConfigChanged(CaptureConfig config, int changes);
+    }
+
+    private static volatile CaptureConfig current = null;
+    private static final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    // the preferences only keep a weak reference to their listeners
+    private static SharedPreferences.OnSharedPreferenceChangeListener preferenceListener = null;
+
+    public final long minLocationTime; // ms
+    public final long minLocationDistance; // m
+    public final boolean highRate;
+    // never together with high rate
+    public final boolean adaptive;
+    public final long adaptiveMaxTime; // ms
+    public final boolean updateOnSignalChange;
+    public final int triggerThreshold; // dB
+    public final long batteryBudget; // % per hour
+    public final String signalMatching;
+    public final boolean compressStationary;
+    public final int flushBatchSize;
+    public final long flushInterval; // ms
+    public final long retentionAge; // days
+
+    private CaptureConfig(Map<String, ?> values) {
+        minLocationTime = Preferences.getAsLong(values, Preferences.min_location_time, 60) * 1000l;
+        minLocationDistance = Preferences.getAsLong(values, Preferences.min_location_distance, 50);
+        highRate = Preferences.getAsBoolean(values, Preferences.high_rate, false);
+        adaptive = !highRate && Preferences.getAsBoolean(values, Preferences.adaptive_sampling, false);
+        adaptiveMaxTime = Preferences.getAsLong(values, Preferences.adaptive_max_time, 300) * 1000l;
+        updateOnSignalChange = Preferences.getAsBoolean(values, Preferences.updateOnSignalChange, true);
+        triggerThreshold = (int) Preferences.getAsLong(values, Preferences.trigger_threshold, 4);
+        batteryBudget = Preferences.getAsLong(values, Preferences.battery_budget, 0);
+        signalMatching = Preferences.getAsString(values, Preferences.signal_matching, DataListener.MATCH_BEFORE);
+        compressStationary = Preferences.getAsBoolean(values, Preferences.compress_stationary, true);
+        flushBatchSize = (int) Math.max(1, Preferences.getAsLong(values, Preferences.flush_batch_size, 20));
+        flushInterval = Math.max(0, Preferences.getAsLong(values, Preferences.flush_interval, 60)) * 1000l;
+        retentionAge = Preferences.getAsLong(values, Preferences.retention_age, 0);
+    }
+
+    /**
+     * @return the current snapshot
+     */
+    public static synchronized CaptureConfig get(Context context) {
+        if (current == null) {
+            SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+            current = new CaptureConfig(preferences.getAll());
+            preferenceListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences p, String key) {
+                    update(p);
+                }
+            };
+            preferences.registerOnSharedPreferenceChangeListener(preferenceListener);
+        }
+        return current;
+    }
+
+    /**
+     * @return the current snapshot, the listener gets the following ones
+     */
+    public static CaptureConfig addListener(Context context, Listener listener) {
+        listeners.add(listener);
+        return get(context);
+    }
+
+    public static void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    private static void update(SharedPreferences preferences) {
+        CaptureConfig config = new CaptureConfig(preferences.getAll());
+        int changes;
+        synchronized (CaptureConfig.class) {
+            changes = config.diff(current);
+            current = config;
+        }
+        if (changes == 0) {
+            return;
+        }
+        Log.i(LOG_TAG, "config changed: " + Integer.toBinaryString(changes));
+        for (Listener listener : listeners) {
+            listener.onConfigChanged(config, changes);
+        }
+    }
+
+    /**
+     * @param previous the previous snapshot, null for none
+     * @return the groups of settings that differ, ALL if there is no previous snapshot
+     */
+    public int diff(CaptureConfig previous) {
+        if (previous == null) {
+            return ALL;
+        }
+        int changes = 0;
+        if (minLocationTime != previous.minLocationTime || minLocationDistance != previous.minLocationDistance
+                || highRate != previous.highRate || adaptive != previous.adaptive
+                || adaptiveMaxTime != previous.adaptiveMaxTime) {
+            changes |= SAMPLING;
+        }
+        if (updateOnSignalChange != previous.updateOnSignalChange) {
+            changes |= TRIGGER;
+        }
+        if (triggerThreshold != previous.triggerThreshold) {
+            changes |= TRIGGER_THRESHOLD;
+        }
+        if (batteryBudget != previous.batteryBudget) {
+            changes |= BUDGET;
+        }
+        if (!signalMatching.equals(previous.signalMatching)) {
+            changes |= MATCHING;
+        }
+        if (compressStationary != previous.compressStationary) {
+            changes |= COMPRESSION;
+        }
+        if (flushBatchSize != previous.flushBatchSize || flushInterval != previous.flushInterval) {
+            changes |= WRITE;
+        }
+        if (retentionAge != previous.retentionAge) {
+            changes |= RETENTION;
+        }
+        return changes;
+    }
+}
@@ -0,0 +1,162 @@
+package de.locked.cellmapper.model;
+
+/**
+ * Derives the duty cycle of the capture from a battery budget in percent per hour. The policy only depends on the
+ * {@link Clock} and the {@link BatterySource}, so it is deterministic for given inputs.
+ * <ul>
+ * <li>Charging: maximum rate, listen continuously and keep the wake lock.</li>
+ * <li>No budget: listen LISTEN_WINDOW, sleep MIN_SLEEP, keep the wake lock.</li>
+ * <li>Budget: listen LISTEN_WINDOW, sleep so that the listen time is the duty fraction of the cycle. The wake lock
+ * is only held while listening, polls are spread by 1 / duty.</li>
+ * </ul>
+ * The duty fraction is adjusted on every {@link #update()} from the drain rate observed since the last adjustment:
+ * it is multiplied by budget / rate, by at most factor 2 per step. An adjustment needs a battery drop of at least
+ * one percent, or ESTIMATE_PERIOD without a drop (which bounds the rate from above).
+ */
+public class CaptureGovernor {
+    private static final long HOUR = 3600 * 1000; // ms
+    // keep the location lister that long active before unregistering again. Thanks htc Desire + cyanogen mod.
+    // This combination causes random phone reboots if gps listens too long in background
+    static final long LISTEN_WINDOW = 60 * 1000; // ms
+    static final long MIN_SLEEP = 2000; // ms
+    // re-evaluate the charging state this often while capturing at maximum rate
+    static final long MAX_RATE_WINDOW = 10 * 60 * 1000; // ms
+    // the wake lock outlasts the listen window by this much, in case stopping is late
+    static final long WAKE_LOCK_MARGIN = 10 * 1000; // ms
+    static final long ESTIMATE_PERIOD = 30 * 60 * 1000; // ms
+    static final double MIN_DUTY = 0.02;
+    static final double INITIAL_DUTY = 0.25;
+    private static final double MAX_STEP = 2;
+
+    /**
+     * Time source, monotonic in ms.
+     */
+    public interface Clock {
+        long now();
+    }
+
+    public interface BatterySource {
+        /**
+         * @return battery level in percent
+         */
+        int getLevel();
+
+        boolean isCharging();
+    }
+
+    private final Clock clock;
+    private final BatterySource battery;
+    private double budget = 0; // % per hour, 0 = unlimited
+    private double duty = INITIAL_DUTY;
+    private boolean charging = false;
+    // reference point of the drain estimation
+    private long referenceTime = -1;
+    private int referenceLevel;
+
+    public CaptureGovernor(Clock clock, BatterySource battery) {
+        this.clock = clock;
+        this.battery = battery;
+    }
+
+    /**
+     * @param percentPerHour the battery budget, 0 for no limit
+     */
+    public synchronized void setBudget(double percentPerHour) {
+        if (percentPerHour != budget) {
+            budget = Math.max(0, percentPerHour);
+            duty = INITIAL_DUTY;
+            referenceTime = -1;
+        }
+    }
+
+    /**
+     * Read the battery and adjust the duty fraction. Call at the start of every cycle.
+     */
+    public synchronized void update() {
+        long now = clock.now();
+        int level = battery.getLevel();
+        charging = battery.isCharging();
+        if (charging || referenceTime < 0 || level > referenceLevel) {
+            // the drain can't be measured while charging
+            reset(now, level);
+            return;
+        }
+        long elapsed = now - referenceTime;
+        int drop = referenceLevel - level;
+        if (drop > 0 && elapsed > 0) {
+            adjust(budget / (drop * (double) HOUR / elapsed));
+            reset(now, level);
+        } else if (elapsed >= ESTIMATE_PERIOD) {
+            // less than one percent in the period
+            adjust(budget / (HOUR / (double) elapsed));
+            reset(now, level);
+        }
+    }
+
+    private void adjust(double factor) {
+        if (budget > 0) {
+            duty = Math.max(MIN_DUTY, Math.min(1, duty * Math.max(1 / MAX_STEP, Math.min(MAX_STEP, factor))));
+        }
+    }
+
+    private void reset(long now, int level) {
+        referenceTime = now;
+        referenceLevel = level;
+    }
+
+    public synchronized boolean isMaxRate() {
+        return charging;
+    }
+
+    public synchronized double getDuty() {
+        return charging || budget == 0 ? 1 : duty;
+    }
+
+    /**
+     * @return length of the listen window in ms
+     */
+    public synchronized long getListenWindow() {
+        return charging ? MAX_RATE_WINDOW : LISTEN_WINDOW;
+    }
+
+    /**
+     * @return length of the sleep window in ms
+     */
+    public synchronized long getSleepWindow() {
+        if (charging) {
+            return 0;
+        }
+        if (budget == 0) {
+            return MIN_SLEEP;
+        }
+        return Math.max(MIN_SLEEP, (long) (LISTEN_WINDOW * (1 - duty) / duty));
+    }
+
+    /**
+     * @param base the configured poll interval in ms
+     * @return the poll interval in ms, 0 to not poll (maximum rate)
+     */
+    public synchronized long getPollInterval(long base) {
+        if (charging) {
+            return 0;
+        }
+        if (budget == 0) {
+            return base;
+        }
+        return Math.min(LISTEN_WINDOW, (long) (base / duty));
+    }
+
+    /**
+     * @return true to keep the wake lock during sleep windows as well
+     */
+    public synchronized boolean holdsWakeLockWhileSleeping() {
+        return charging || budget == 0;
+    }
+
+    /**
+     * @return the timeout of the wake lock acquired for a listen window in ms
+     */
+    public synchronized long getWakeLockTime() {
+        return getListenWindow() + WAKE_LOCK_MARGIN;
+    }
+}
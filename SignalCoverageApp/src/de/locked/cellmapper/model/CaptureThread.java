@@ -0,0 +1,60 @@
+package de.locked.cellmapper.model;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+/**
+ * The thread that receives all location, GPS status and signal callbacks, so that capturing never runs on the
+ * main thread. Persisting is handed off to the writer thread of {@link MeasurementBuffer}.
+ * <p/>
+ * Location and GPS status listeners are bound to this thread by registering them with {@link #getLooper()} or
+ * from this thread. A PhoneStateListener delivers its callbacks to the thread it was created on, so create it with
+ * {@link #call(Callable)}.
+ */
+public class CaptureThread {
+    private static HandlerThread thread = null;
+    private static Handler handler = null;
+
+    private CaptureThread() {
+    }
+
+    public static synchronized Looper getLooper() {
+        if (thread == null) {
+            thread = new HandlerThread("capture", Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            Metrics.inc(Metrics.THREADS_STARTED);
+            handler = new Handler(thread.getLooper());
+        }
+        return thread.getLooper();
+    }
+
+    public static Handler getHandler() {
+        getLooper();
+        return handler;
+    }
+
+    /**
+     * Run the task on the capture thread and wait for its result.
+     */
+    public static <T> T call(Callable<T> task) {
+        if (Looper.myLooper() == getLooper()) {
+            try {
+                return task.call();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+        FutureTask<T> future = new FutureTask<T>(task);
+        getHandler().post(future);
+        try {
+            return future.get();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
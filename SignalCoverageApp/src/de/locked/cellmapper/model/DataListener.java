@@ -1,8 +1,6 @@
 package de.locked.cellmapper.model;
 
 import android.content.Context;
-import android.content.SharedPreferences;
-import android.location.GpsSatellite;
 import android.location.GpsStatus;
 import android.location.Location;
 import android.location.LocationListener;
@@ -10,30 +8,54 @@ import android.location.LocationManager;
 import android.net.ConnectivityManager;
 import android.os.Build;
 import android.os.Bundle;
-import android.preference.PreferenceManager;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.telephony.PhoneStateListener;
 import android.telephony.SignalStrength;
 import android.telephony.TelephonyManager;
 import android.util.Log;
 
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.Callable;
 
 public class DataListener extends PhoneStateListener implements LocationListener, GpsStatus.Listener {
     private static final String LOG_TAG = DataListener.class.getName();
     private static final SimpleDateFormat sdf = new SimpleDateFormat(
             "y-MM-dd HH:mm:ss", Locale.US);
+    // how locations are matched with signal samples, see Preferences.signal_matching
+    public static final String MATCH_BEFORE = "before";
+    public static final String MATCH_NEAREST = "nearest";
+    public static final String MATCH_INTERPOLATE = "interpolate";
+    // use samples at most this far from the location, wait at most this long for a sample after the location
+    private static final long MATCH_TOLERANCE = 2000; // ms
     // singleton
     private static DataListener INSTANCE = null;
     private final Context context;
     private final LocationManager locationManager;
     private final TelephonyManager telephonyManager;
-    private final DbHandler db;
+    private final MeasurementBuffer buffer;
+    private final StationaryCompressor compressor;
+    private final DeviceState deviceState;
     private final ConnectivityManager connectivityManager;
-    private final int signalListMaxLength = 1000;
-    private final LinkedList<SignalEntry> signalList = new LinkedList<SignalEntry>();
+    // the default subscription first, see Subscription
+    private final List<Subscription> subscriptions;
+    private final AdaptiveSampler sampler = new AdaptiveSampler();
+    // the passive provider forwards the fixes of the active capture as well
+    private final FixDeduplicator deduplicator = new FixDeduplicator();
+    // locations waiting for a signal sample after them
+    private final List<PendingLocation> pending = new ArrayList<PendingLocation>();
+    private final Handler handler = CaptureThread.getHandler();
+    private final Runnable matchTask = new Runnable() {
+        @Override
+        public void run() {
+            matchPending(false);
+        }
+    };
     // device data
     private final String manufacturer = Build.MANUFACTURER; // HTC
     private final String device = Build.DEVICE; // bravo
@@ -42,11 +64,16 @@ public class DataListener extends PhoneStateListener implements LocationListener
     // Build.VERSION.SDK_INT returns the API version. In a rooted phone,
     // this might be null!
     private final String androidRelease = Build.VERSION.RELEASE; // android version like 2.3.7
-    private int satellitesInFix;
+    // statistics of the satellites of the last fix, read from gpsStatus once per saved fix
+    private final SatelliteStats satellites = new SatelliteStats();
+    private GpsStatus gpsStatus = null;
+    private boolean gpsStatusChanged = false;
     //
     private Location lastLocation = null;
-    private long minLocationTime;
-    private long minLocationDistance;
+    // the config is replaced on the main thread
+    private volatile CaptureConfig config;
+    // set by the capture governor while charging
+    private volatile boolean maxRate = false;
 
     private DataListener(Context context) {
         this.context = context;
@@ -56,24 +83,35 @@ public class DataListener extends PhoneStateListener implements LocationListener
                 .getSystemService(Context.TELEPHONY_SERVICE));
         this.connectivityManager = (ConnectivityManager) context
                 .getSystemService(Context.CONNECTIVITY_SERVICE);
-        this.db = DbHandler.get(context);
+        this.buffer = MeasurementBuffer.get(context);
+        this.compressor = new StationaryCompressor(buffer, handler);
+        this.subscriptions = Subscription.discover(context, this);
+        this.deviceState = DeviceState.get(context);
 
         // http://stackoverflow.com/questions/5499217/how-to-recognize-that-cyanogenmod-is-on-a-board/9801191
         this.osVersion = System.getProperty("os.version");
 
-        loadPreferences();
-        PreferenceManager.getDefaultSharedPreferences(context).registerOnSharedPreferenceChangeListener(
-                new SharedPreferences.OnSharedPreferenceChangeListener() {
-                    @Override
-                    public void onSharedPreferenceChanged(SharedPreferences p, String key) {
-                        loadPreferences();
-                    }
-                });
+        CaptureConfig config = CaptureConfig.addListener(context, new CaptureConfig.Listener() {
+            @Override
+            public void onConfigChanged(CaptureConfig config, int changes) {
+                apply(config, changes);
+            }
+        });
+        apply(config, CaptureConfig.ALL);
     }
 
-    public static synchronized DataListener getInstance(Context context) {
+    /**
+     * The listener is created on the {@link CaptureThread}, so that its signal callbacks are delivered there.
+     * Register it for location updates with the looper of the capture thread.
+     */
+    public static synchronized DataListener getInstance(final Context context) {
         if (INSTANCE == null) {
-            INSTANCE = new DataListener(context);
+            INSTANCE = CaptureThread.call(new Callable<DataListener>() {
+                @Override
+                public DataListener call() {
+                    return new DataListener(context);
+                }
+            });
         }
         return INSTANCE;
     }
@@ -103,11 +141,14 @@ public class DataListener extends PhoneStateListener implements LocationListener
 
     @Override
     public synchronized void onLocationChanged(Location location) {
+        Metrics.inc(Metrics.FIXES);
         if (location == null) {
+            Metrics.inc(Metrics.REJECTED_NULL);
             Log.d(LOG_TAG, "null location received, ignore.");
             return;
         }
-        if (MobileStatusUtils.isAirplaneModeOn(context)) {
+        if (deviceState.isAirplaneModeOn()) {
+            Metrics.inc(Metrics.REJECTED_AIRPLANE_MODE);
             Log.d(LOG_TAG, "we are in airplane mode, ignore.");
             return;
         }
@@ -115,62 +156,167 @@ public class DataListener extends PhoneStateListener implements LocationListener
         // So reject all timestamps that diff more than an hour
         long age = Math.abs(System.currentTimeMillis() - location.getTime());
         if (age > 3600 * 1000) {
+            Metrics.inc(Metrics.REJECTED_STALE);
             Log.d(LOG_TAG, "out of date location, ignore." + sdf.format(new Date(location.getTime())));
             return;
         }
+        if (!deduplicator.accept(location, SystemClock.elapsedRealtime())) {
+            Metrics.inc(Metrics.REJECTED_DUPLICATE);
+            Log.d(LOG_TAG, "duplicate " + location.getProvider() + " location, ignore");
+            return;
+        }
 
-        if (lastLocation != null) {
-            if (Math.abs(location.getTime() - lastLocation.getTime()) < minLocationTime) {
+        CaptureConfig config = this.config;
+        // fixes waiting for their match count as well, otherwise all fixes within the match tolerance would pass
+        Location previous = pending.isEmpty() ? lastLocation : pending.get(pending.size() - 1).location;
+        if (maxRate || config.highRate) {
+            // keep every fix
+        } else if (config.adaptive) {
+            sampler.onLocation(location);
+            if (previous != null && !sampler.accept(Math.abs(location.getTime() - previous.getTime()),
+                    location.distanceTo(previous))) {
+                Metrics.inc(Metrics.REJECTED_SAMPLING);
+                Log.d(LOG_TAG, "location too close to last location for the current sampling rate, ignore");
+                return;
+            }
+        } else if (previous != null) {
+            if (Math.abs(location.getTime() - previous.getTime()) < config.minLocationTime) {
+                Metrics.inc(Metrics.REJECTED_TIME);
                 Log.d(LOG_TAG, "new location is too close (temporal) to last location, ignore");
                 return;
             }
-            if (location.distanceTo(lastLocation) < minLocationDistance) {
+            if (location.distanceTo(previous) < config.minLocationDistance) {
+                Metrics.inc(Metrics.REJECTED_DISTANCE);
                 Log.d(LOG_TAG, "location too close to last location, ignore");
                 return;
             }
         }
 
-        // signal information might be younger than the location
-        SignalStrength signal = findSignalFor(location.getTime());
-        if (signal == null) {
-            Log.d(LOG_TAG, "no signal found. Can't save anything.");
-            return; // well, without signal information all this is rather useless
+        if (gpsStatusChanged) {
+            gpsStatusChanged = false;
+            gpsStatus = locationManager.getGpsStatus(gpsStatus);
+            satellites.read(gpsStatus);
         }
-        lastLocation = location;
 
-        // keep roaming in mind!
-        String carrier = telephonyManager.getNetworkOperatorName();
-        db.save(location, signal, satellitesInFix, carrier, androidRelease,
-                manufacturer, model, device, osVersion);
+        if (MATCH_BEFORE.equals(config.signalMatching)) {
+            // signal information might be younger than the location
+            if (!save(location, satellites)) {
+                return; // well, without signal information all this is rather useless
+            }
+            lastLocation = location;
+        } else {
+            // the signal sample right after the location has not arrived yet
+            pending.add(new PendingLocation(location, new SatelliteStats(satellites)));
+            handler.postDelayed(matchTask, MATCH_TOLERANCE);
+        }
     }
 
     /**
-     * Find most recent signal that is younger than the age og the location.
-     * <p/>
-     * S9 = Signal at timestamp 9, L7.5 = Location at 7.5</br>
-     * S9 S8 L7.5 S7 S6 S5</br>
-     * Find first signal that is younger than the age of the location</br>
-     * Would be S7 in this case.
+     * Match the pending locations that have a signal sample after them or that waited long enough.
      *
-     * @param timestamp of the location
-     * @return the SignalStrength if one was found, null otherwise.
+     * @param all true to match all pending locations with the samples available now
      */
-    private SignalStrength findSignalFor(long timestamp) {
-        for (SignalEntry entry : signalList) {
-            if (timestamp > entry.time) {
-                return entry.signal;
+    private synchronized void matchPending(boolean all) {
+        long now = System.currentTimeMillis();
+        // all subscriptions must have a sample after the location
+        long newest = Long.MAX_VALUE;
+        for (Subscription subscription : subscriptions) {
+            newest = Math.min(newest, subscription.signals.newestTime());
+        }
+        Iterator<PendingLocation> iterator = pending.iterator();
+        while (iterator.hasNext()) {
+            PendingLocation p = iterator.next();
+            long time = p.location.getTime();
+            if (!all && newest < time && now < p.received + MATCH_TOLERANCE) {
+                return;
+            }
+            if (save(p.location, p.satellites)) {
+                lastLocation = p.location;
+            }
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Match the location with the signal samples of every subscription and save a row per match. The rows of one
+     * location are queued together, so they are written in the same transaction.
+     *
+     * @return false if no subscription has a matching signal sample
+     */
+    private boolean save(Location location, SatelliteStats satellites) {
+        long time = location.getTime();
+        String matching = config.signalMatching;
+        List<Measurement> rows = new ArrayList<Measurement>(subscriptions.size());
+        for (Subscription subscription : subscriptions) {
+            SignalRingBuffer.Match match = subscription.match;
+            boolean found;
+            if (MATCH_NEAREST.equals(matching)) {
+                found = subscription.signals.findNearest(time, MATCH_TOLERANCE, match);
+            } else if (MATCH_INTERPOLATE.equals(matching)) {
+                found = subscription.signals.interpolate(time, MATCH_TOLERANCE, match);
+            } else {
+                found = subscription.signals.findBefore(time, match);
+            }
+            if (found) {
+                // keep roaming in mind!
+                String carrier = subscription.slot == 0 ? deviceState.getCarrier() : subscription.getCarrier();
+                rows.add(new Measurement(location, subscription.slot, match.signal, match.skew, satellites, carrier,
+                        androidRelease, manufacturer, model, device, osVersion));
             }
         }
-        return null;
+        if (rows.isEmpty()) {
+            Metrics.inc(Metrics.REJECTED_NO_SIGNAL);
+            Log.d(LOG_TAG, "no signal found. Can't save anything.");
+            return false;
+        }
+        if (config.compressStationary) {
+            compressor.add(rows);
+        } else {
+            buffer.addAll(rows);
+        }
+        return true;
     }
 
+    /**
+     * Register for signal strength updates of all subscriptions, LISTEN_NONE to unregister.
+     */
+    public void listenSignals(int events) {
+        telephonyManager.listen(this, events);
+        for (Subscription subscription : subscriptions) {
+            subscription.listen(events);
+        }
+    }
+
+    /**
+     * Write all measurements that are still queued to the database.
+     */
+    public void flush() {
+        matchPending(true);
+        compressor.flush();
+        buffer.flush();
+    }
+
+    /**
+     * By default the location is matched with the most recent signal that is older than the location.
+     * <p/>
+     * S9 = Signal at timestamp 9, L7.5 = Location at 7.5</br>
+     * S9 S8 L7.5 S7 S6 S5</br>
+     * Would be S7 in this case. The other matching modes use S8 as well (nearest or interpolated), they wait up to
+     * MATCH_TOLERANCE for it. The time difference to the used sample is stored as signalSkew.
+     */
     @Override
     public void onSignalStrengthsChanged(SignalStrength signalStrength) {
-        Log.d(LOG_TAG, "signal strength update received. Keeping " + signalList.size() + " measures.");
-        signalList.addFirst(new SignalEntry(signalStrength));
-        while (signalList.size() > signalListMaxLength) {
-            signalList.removeLast();
+        onSignal(subscriptions.get(0), signalStrength);
+    }
+
+    synchronized void onSignal(Subscription subscription, SignalStrength signalStrength) {
+        Metrics.inc(Metrics.SIGNAL_UPDATES);
+        subscription.sample.read(signalStrength);
+        subscription.signals.add(System.currentTimeMillis(), subscription.sample);
+        if (subscription.slot == 0) {
+            sampler.onSignal(subscription.sample);
         }
+        matchPending(false);
     }
 
     @Override
@@ -185,34 +331,52 @@ public class DataListener extends PhoneStateListener implements LocationListener
     public void onStatusChanged(String provider, int status, Bundle extras) {
     }
 
+    /**
+     * Status events arrive once per second or faster, they are only noted here. The status is read when the next
+     * fix is saved, into a reused GpsStatus.
+     */
     @Override
-    public void onGpsStatusChanged(int i) {
-        int satellites = 0;
-        int satellitesInFix = 0;
-        int timetofix = locationManager.getGpsStatus(null).getTimeToFirstFix();
-        for (GpsSatellite sat : locationManager.getGpsStatus(null).getSatellites()) {
-            if (sat.usedInFix()) {
-                satellitesInFix++;
-            }
-            satellites++;
+    public synchronized void onGpsStatusChanged(int event) {
+        gpsStatusChanged = true;
+        if (event == GpsStatus.GPS_EVENT_FIRST_FIX) {
+            gpsStatus = locationManager.getGpsStatus(gpsStatus);
+            Log.d(LOG_TAG, "Time to first fix = " + gpsStatus.getTimeToFirstFix() + "ms");
+        }
+    }
+
+    private void apply(CaptureConfig config, int changes) {
+        Log.i(LOG_TAG, "apply config");
+        this.config = config;
+        if ((changes & CaptureConfig.SAMPLING) != 0) {
+            sampler.setBounds(config.minLocationTime, config.adaptiveMaxTime, config.minLocationDistance);
+        }
+        if ((changes & CaptureConfig.COMPRESSION) != 0 && !config.compressStationary) {
+            compressor.flush();
         }
-        Log.d(LOG_TAG, "Time to first fix = " + timetofix + "ms, Satellites: " + satellites + ", In last fix: " + satellitesInFix);
-        this.satellitesInFix = satellitesInFix;
     }
 
-    private void loadPreferences() {
-        Log.i(LOG_TAG, "(re)load preferences");
-        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
-        minLocationTime = Preferences.getAsLong(preferences, Preferences.min_location_time, 60) * 1000l;
-        minLocationDistance = Preferences.getAsLong(preferences, Preferences.min_location_distance, 50);
+    /**
+     * @param maxRate true to keep every fix regardless of the sampling settings
+     */
+    public void setMaxRate(boolean maxRate) {
+        this.maxRate = maxRate;
+    }
+
+    /**
+     * @return the sampler that sets the thresholds if adaptive sampling is enabled
+     */
+    public AdaptiveSampler getSampler() {
+        return sampler;
     }
 
-    class SignalEntry {
-        final long time = System.currentTimeMillis();
-        final SignalStrength signal;
+    static class PendingLocation {
+        final Location location;
+        final SatelliteStats satellites;
+        final long received = System.currentTimeMillis();
 
-        public SignalEntry(SignalStrength s) {
-            this.signal = s;
+        PendingLocation(Location location, SatelliteStats satellites) {
+            this.location = location;
+            this.satellites = satellites;
         }
     }
 }
@@ -1,29 +1,67 @@
 package de.locked.cellmapper.model;
 
+import android.annotation.TargetApi;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.MergeCursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
-import android.location.Location;
-import android.telephony.SignalStrength;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 import android.util.Log;
 
+import java.io.File;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
-public class DbHandler extends SQLiteOpenHelper {
+public class DbHandler extends SQLiteOpenHelper implements MeasurementStore {
     public static final String LOG_TAG = DbHandler.class.getName();
     public static final String DB_NAME = "CellMapper";
     public static final String TABLE = "Base";
+    /**
+     * Base joined with the dictionary tables. Provides the same columns Base had before the device and carrier
+     * strings were moved to dictionaries, so readers don't need to care.
+     */
+    public static final String VIEW = "Data";
+    public static final String CARRIER_TABLE = "Carrier";
+    public static final String DEVICE_TABLE = "Device";
+    public static final String WATERMARK_TABLE = "Watermark";
 
     private static final SimpleDateFormat sdf = new SimpleDateFormat("y-MM-dd HH:mm:ss", Locale.US);
-    private static final int DATABASE_VERSION = 6;
+    private static final int DATABASE_VERSION = 18;
+
+    // checkpoint right away if the write ahead log grows larger than this
+    private static final long MAX_WAL_SIZE = 4 * 1024 * 1024; // bytes
+    private static final long DAY = 24 * 3600 * 1000; // ms
+    private static final String ALL_TIMES = "time >= ? AND time < ?";
+    // rows after the (time, slot) key of the last row of the previous page
+    private static final String PAGE = "(time > ? OR (time = ? AND slot > ?)) AND time < ?";
+    private static final String[] DEVICE_COLUMNS = {"androidRelease", "manufacturer", "model", "device", "osVersion"};
 
     private static DbHandler instance = null;
     private int writecount = 0;
+    private SQLiteStatement insertStatement;
+    private SQLiteDatabase insertStatementDb;
+    // dictionary caches: value -> id
+    private final HashMap<String, Long> carrierIds = new HashMap<String, Long>();
+    private final HashMap<String, Long> deviceIds = new HashMap<String, Long>();
+    private final Partitions partitions;
+    private final File path;
+    private final Context context;
+    private volatile boolean maintaining = false;
+    // day of the last maintenance run
+    private long checkedDay = 0;
+    private final boolean maintained;
+    private boolean walEnabled = false;
+    // read only connection, see getReader()
+    private SQLiteDatabase reader;
 
     public synchronized static DbHandler get(Context context) {
         if (instance == null) {
@@ -33,74 +71,272 @@ public class DbHandler extends SQLiteOpenHelper {
     }
 
     private DbHandler(Context context) {
-        super(context, DB_NAME, null, DATABASE_VERSION);
+        this(context, DB_NAME, true);
     }
 
-    public String getLastEntryString() {
-        SQLiteDatabase db = getReadableDatabase();
-        Cursor cursor = db.rawQuery("SELECT datetime(time, 'unixepoch', 'localtime') AS LastEntry FROM " + TABLE + " ORDER BY time DESC LIMIT 1", null);
+    /**
+     * A separate database without the daily maintenance, for benchmarks.
+     */
+    DbHandler(Context context, String name) {
+        this(context, name, false);
+    }
+
+    private DbHandler(Context context, String name, boolean maintained) {
+        super(context, name, null, DATABASE_VERSION);
+        this.context = context.getApplicationContext();
+        this.partitions = new Partitions(this.context, name);
+        this.path = context.getDatabasePath(name);
+        this.maintained = maintained;
+    }
+
+    /**
+     * The database is written through the connection of getWritableDatabase() only. Readers (UI, exporters) use
+     * this read only connection. In WAL mode it reads the last committed state without blocking the writer and
+     * without being blocked by it. Without WAL (Android < 3.0) this is the writable database.
+     *
+     * @return the connection for reading
+     */
+    public synchronized SQLiteDatabase getReader() {
+        SQLiteDatabase writer = getWritableDatabase(); // creates/upgrades the db if needed
+        if (!walEnabled) {
+            return writer;
+        }
+        if (reader == null || !reader.isOpen()) {
+            reader = SQLiteDatabase.openDatabase(path.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+        }
+        return reader;
+    }
+
+    /**
+     * Copies the write ahead log into the database without waiting for readers. Should be called when no data
+     * is being captured, as it's automatic checkpointing is disabled.
+     */
+    @Override
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public synchronized void sync() {
+        if (!walEnabled) {
+            return;
+        }
+        Cursor cursor = getWritableDatabase().rawQuery("PRAGMA wal_checkpoint(PASSIVE)", null);
+        if (cursor.moveToFirst()) {
+            Log.d(LOG_TAG, "checkpoint: busy " + cursor.getInt(0) + ", wal frames " + cursor.getInt(1) //
+                    + ", checkpointed " + cursor.getInt(2));
+        }
+        cursor.close();
+    }
+
+    /**
+     * @return true if the write ahead log is so large that it should be checkpointed even during capture
+     */
+    @Override
+    public boolean needsSync() {
+        return walEnabled && new File(path.getPath() + "-wal").length() > MAX_WAL_SIZE;
+    }
 
+    @Override
+    public String getLastEntryString() {
+        Cursor cursor = getLastRow();
         String result = "";
         if (cursor.moveToFirst()) {
-            result = cursor.getString(0);
+            result = sdf.format(new Date(cursor.getLong(cursor.getColumnIndex("time"))));
         }
         cursor.close();
         return result;
     }
 
-	public void save(Location location, SignalStrength signal, int satellites,
-			String carrier, String androidRelease, 
-			String manufacturer, String model, String device, String osVersion) {
-        int timeSec = (int) (location.getTime() / 1000);
-        carrier = carrier == null ? "" : carrier;
+    /**
+     * @return cursor on the newest row of the hot partition or - if that is empty - of the newest archive
+     */
+    private Cursor getLastRow() {
+        SQLiteDatabase db = getReader();
+        long rowId = Statistics.lastRowId(db);
+        if (rowId < 0) {
+            Cursor archived = partitions.queryLast(db);
+            if (archived != null) {
+                return archived;
+            }
+        }
+        return db.rawQuery("SELECT * FROM " + VIEW + //
+                " WHERE time = (SELECT time FROM " + TABLE + " WHERE rowid = ?) " + //
+                " AND slot = (SELECT slot FROM " + TABLE + " WHERE rowid = ?)", //
+                new String[]{Long.toString(rowId), Long.toString(rowId)});
+    }
+
+    /**
+     * @return the time of the newest row of all partitions or -1 if there is no data
+     */
+    @Override
+    public long getLastTime() {
+        Cursor cursor = getReader().rawQuery("SELECT MAX(t) FROM (" + //
+                " SELECT maxTime AS t FROM " + Statistics.TABLE + //
+                " UNION ALL SELECT maxTime FROM " + Partitions.TABLE + ")", null);
+        long time = -1;
+        if (cursor.moveToFirst() && !cursor.isNull(0)) {
+            time = cursor.getLong(0);
+        }
+        cursor.close();
+        return time;
+    }
+
+    /**
+     * Writes all given measurements in a single transaction using a precompiled statement.
+     *
+     * @param measurements the rows to write
+     * @return the number of rows written
+     */
+    @Override
+    public synchronized int saveAll(List<Measurement> measurements) {
+        if (measurements.isEmpty()) {
+            return 0;
+        }
 
         // /data/data/de.locked.cellmapper/databases/CellMapper
-        // sqlite> select datetime(time, 'unixepoch', 'localtime') FROM Base
+        // sqlite> select datetime(time / 1000, 'unixepoch', 'localtime') FROM Base
         // ORDER BY TIME DESC LIMIT 4;
         SQLiteDatabase db = getWritableDatabase();
+        SQLiteStatement insert = getInsertStatement(db);
+        int written = 0;
         try {
             db.beginTransaction();
-            Log.i(LOG_TAG, "writing data to db (location+signal) at time " + sdf.format(new Date(timeSec * 1000L)));
-
-            ContentValues values = new ContentValues();
-            values.put("time", timeSec);
-            values.put("accuracy", location.getAccuracy());
-            values.put("altitude", location.getAltitude());
-            values.put("satellites", satellites);
-            values.put("latitude", location.getLatitude());
-            values.put("longitude", location.getLongitude());
-            values.put("speed", location.getSpeed());
-            values.put("signalStrength", signal.getGsmSignalStrength());
-            values.put("carrier", carrier);
-            values.put("androidrelease", androidRelease);
-            values.put("manufacturer", manufacturer);
-            values.put("model", model);
-            values.put("device", device);
-            values.put("osVersion", osVersion);
-            long success = db.replace(TABLE, null, values);
-
-            Log.i(LOG_TAG, "transaction successfull: " + success);
+            for (Measurement m : measurements) {
+                long carrierId = getCarrierId(db, m.carrier);
+                long deviceId = getDeviceId(db, m.androidRelease, m.manufacturer, m.model, m.device, m.osVersion);
+
+                insert.clearBindings();
+                insert.bindLong(1, m.time);
+                insert.bindDouble(2, m.accuracy);
+                insert.bindDouble(3, m.altitude);
+                insert.bindLong(4, m.satellites);
+                insert.bindDouble(5, m.latitude);
+                insert.bindDouble(6, m.longitude);
+                insert.bindDouble(7, m.speed);
+                insert.bindLong(8, m.signalStrength);
+                insert.bindLong(9, carrierId);
+                insert.bindLong(10, deviceId);
+                insert.bindLong(11, SpatialIndex.quadkey(m.latitude, m.longitude));
+                insert.bindLong(12, m.signalSkew);
+                insert.bindBlob(13, m.signals);
+                insert.bindDouble(14, m.meanSnr);
+                insert.bindDouble(15, m.maxSnr);
+                insert.bindLong(16, m.constellations);
+                insert.bindLong(17, m.startTime);
+                insert.bindLong(18, m.samples);
+                insert.bindLong(19, m.slot);
+                insert.executeInsert();
+                written++;
+            }
             db.setTransactionSuccessful();
+            Log.i(LOG_TAG, "wrote " + written + " rows to db, last at time "
+                    + sdf.format(new Date(measurements.get(written - 1).time)));
         } catch (SQLException e) {
             Log.e(LOG_TAG, e.getMessage(), e);
+            written = 0;
+            // ids inserted in the failed transaction are gone
+            carrierIds.clear();
+            deviceIds.clear();
         } finally {
             db.endTransaction();
         }
 
-        if (writecount++ % 100 == 0) {
+        writecount += written;
+        if (writecount >= 100) {
+            writecount = 0;
             SQLiteDatabase.releaseMemory();
         }
-	}
 
+        // once a day (and on the first write) archive closed months and apply the retention policy
+        long day = System.currentTimeMillis() / DAY;
+        if (maintained && day != checkedDay) {
+            checkedDay = day;
+            new Thread("db maintenance") {
+                @Override
+                public void run() {
+                    maintain();
+                }
+            }.start();
+            Metrics.inc(Metrics.THREADS_STARTED);
+        }
+        return written;
+    }
+
+    private SQLiteStatement getInsertStatement(SQLiteDatabase db) {
+        if (insertStatement == null || insertStatementDb != db) {
+            insertStatement = db.compileStatement("INSERT OR REPLACE INTO " + TABLE + //
+                    " (time, accuracy, altitude, satellites, latitude, longitude, speed, signalStrength, " + //
+                    " carrierId, deviceId, quadkey, signalSkew, signals, meanSnr, maxSnr, constellations, " + //
+                    " startTime, samples, slot)" + //
+                    " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+            insertStatementDb = db;
+        }
+        return insertStatement;
+    }
+
+    private long getCarrierId(SQLiteDatabase db, String carrier) {
+        String name = carrier == null ? "" : carrier;
+        Long id = carrierIds.get(name);
+        if (id == null) {
+            id = getOrInsertId(db, CARRIER_TABLE, new String[]{"name"}, new String[]{name});
+            carrierIds.put(name, id);
+        }
+        return id;
+    }
+
+    private long getDeviceId(SQLiteDatabase db, String androidRelease, String manufacturer, String model,
+                             String device, String osVersion) {
+        String[] values = new String[]{nn(androidRelease), nn(manufacturer), nn(model), nn(device), nn(osVersion)};
+        String key = values[0] + '\n' + values[1] + '\n' + values[2] + '\n' + values[3] + '\n' + values[4];
+        Long id = deviceIds.get(key);
+        if (id == null) {
+            id = getOrInsertId(db, DEVICE_TABLE, DEVICE_COLUMNS, values);
+            deviceIds.put(key, id);
+        }
+        return id;
+    }
+
+    /**
+     * Look up the id of the dictionary entry with the given values and create the entry if it does not exist.
+     */
+    private long getOrInsertId(SQLiteDatabase db, String table, String[] columns, String[] values) {
+        StringBuilder where = new StringBuilder();
+        for (String column : columns) {
+            where.append(where.length() == 0 ? "" : " AND ").append(column).append(" = ?");
+        }
+        Cursor cursor = db.query(table, new String[]{"id"}, where.toString(), values, null, null, null);
+        try {
+            if (cursor.moveToFirst()) {
+                return cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        ContentValues row = new ContentValues();
+        for (int i = 0; i < columns.length; i++) {
+            row.put(columns[i], values[i]);
+        }
+        Log.i(LOG_TAG, "new " + table + " entry: " + row);
+        return db.insertOrThrow(table, null, row);
+    }
+
+    private static String nn(String s) {
+        return s == null ? "" : s;
+    }
+
+    @Override
     public String getLastRowAsString() {
-        SQLiteDatabase db = getReadableDatabase();
-        Cursor cursor = db.rawQuery("SELECT * FROM " + TABLE + " ORDER BY time DESC LIMIT 1", null);
+        return rowToString(getLastRow());
+    }
 
+    /**
+     * @return the first row of the cursor as one "column: value" line per column. Closes the cursor.
+     */
+    static String rowToString(Cursor cursor) {
         StringBuilder sb = new StringBuilder(64);
         if (cursor.moveToFirst()) {
             for (int i = 0; i < cursor.getColumnCount(); i++) {
                 String columnName = cursor.getColumnName(i);
-                String value = cursor.getString(i);
+                String value = SignalVector.COLUMN.equals(columnName) ? SignalVector.toString(cursor.getBlob(i))
+                        : cursor.getString(i);
 
                 sb.append(Strings.rpad(columnName + ":", 16, " "));
                 sb.append(value);
@@ -111,26 +347,228 @@ public class DbHandler extends SQLiteOpenHelper {
         return sb.toString();
     }
 
+    @Override
     public int getRows() {
-        Cursor cursor = getReadableDatabase().rawQuery("SELECT COUNT(*) FROM " + TABLE, null);
+        SQLiteDatabase db = getReader();
+        return Statistics.rows(db) + partitions.countRows(db);
+    }
+
+    /**
+     * @return carrier name -> number of rows, largest first
+     */
+    @Override
+    public Map<String, Integer> getRowsPerCarrier() {
+        return Statistics.rowsPerCarrier(getReader());
+    }
+
+    /**
+     * @param from db time (ms), inclusive
+     * @return number of rows with a time of at least from
+     */
+    @Override
+    public int getRows(long from) {
+        SQLiteDatabase db = getReader();
+        Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM " + TABLE + " WHERE time >= ?",
+                new String[]{Long.toString(from)});
         int count = 0;
         if (cursor.moveToFirst()) {
             count = cursor.getInt(0);
         }
         cursor.close();
-        return count;
+        return count + partitions.countRows(db, from);
     }
 
     public Cursor getAll() {
-        return getReadableDatabase().rawQuery("SELECT * FROM " + TABLE + " ORDER BY time ASC", null);
+        return query(null, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Query all partitions that overlap the given time range. The archives are read first, the hot partition last.
+     *
+     * @param bbox the area of interest or null for everywhere
+     * @param from db time (ms), inclusive
+     * @param to   db time (ms), exclusive
+     * @return the rows of the Data view ordered by time and slot
+     */
+    public Cursor query(BoundingBox bbox, long from, long to) {
+        List<String> args = new ArrayList<String>();
+        String where = where(bbox, from, to, args);
+        String sql = "SELECT * FROM " + VIEW + " WHERE " + where + " ORDER BY time ASC, slot ASC";
+        String[] argArray = args.toArray(new String[args.size()]);
+
+        List<Cursor> cursors = new ArrayList<Cursor>();
+        for (SQLiteDatabase db : sources(from, to)) {
+            cursors.add(db.rawQuery(sql, argArray));
+        }
+        if (cursors.size() == 1) {
+            return cursors.get(0);
+        }
+        return new MergeCursor(cursors.toArray(new Cursor[cursors.size()]));
+    }
+
+    /**
+     * Like {@link #query(BoundingBox, long, long)} but the rows are read page by page while the cursor advances.
+     *
+     * @param bbox the area of interest or null for everywhere
+     * @param from db time (ms), inclusive, not negative
+     * @param to   db time (ms), exclusive
+     */
+    @Override
+    public StreamingCursor stream(final BoundingBox bbox, long from, final long to) {
+        return new StreamingCursor(new StreamingCursor.PageSource() {
+            @Override
+            public Cursor page(long afterTime, int afterSlot, int limit) {
+                return queryPage(bbox, afterTime, afterSlot, to, limit);
+            }
+        }, from);
+    }
+
+    /**
+     * @return the first rows after the given (time, slot) from the first partition that has any
+     */
+    private Cursor queryPage(BoundingBox bbox, long afterTime, int afterSlot, long to, int limit) {
+        List<String> args = new ArrayList<String>();
+        args.add(Long.toString(afterTime));
+        args.add(Long.toString(afterTime));
+        args.add(Integer.toString(afterSlot));
+        args.add(Long.toString(to));
+        String where = bbox == null ? PAGE : PAGE + " AND " + SpatialIndex.where(bbox, args);
+        String sql = "SELECT * FROM " + VIEW + " WHERE " + where + " ORDER BY time ASC, slot ASC LIMIT " + limit;
+        String[] argArray = args.toArray(new String[args.size()]);
+
+        Cursor cursor = null;
+        for (SQLiteDatabase db : sources(afterTime, to)) {
+            if (cursor != null) {
+                cursor.close();
+            }
+            cursor = db.rawQuery(sql, argArray);
+            if (cursor.getCount() > 0) {
+                break;
+            }
+        }
+        return cursor;
+    }
+
+    /**
+     * @return the archives overlapping [from, to) and the hot partition, in chronological order
+     */
+    private List<SQLiteDatabase> sources(long from, long to) {
+        SQLiteDatabase db = getReader();
+        List<SQLiteDatabase> sources = partitions.archives(db, from, to);
+        sources.add(db);
+        return sources;
+    }
+
+    private static String where(BoundingBox bbox, long from, long to, List<String> args) {
+        args.add(Long.toString(from));
+        args.add(Long.toString(to));
+        if (bbox == null) {
+            return ALL_TIMES;
+        }
+        return ALL_TIMES + " AND " + SpatialIndex.where(bbox, args);
+    }
+
+    /**
+     * @param destination the export destination
+     * @return the time of the last row that was successfully exported to the destination or -1 if there is none
+     */
+    @Override
+    public long getWatermark(String destination) {
+        Cursor cursor = getReader().rawQuery("SELECT time FROM " + WATERMARK_TABLE //
+                + " WHERE destination = ?", new String[]{destination});
+        long time = -1;
+        if (cursor.moveToFirst()) {
+            time = cursor.getLong(0);
+        }
+        cursor.close();
+        return time;
+    }
+
+    /**
+     * Remember that all rows up to the given time have been exported to the destination.
+     */
+    @Override
+    public synchronized void setWatermark(String destination, long time) {
+        ContentValues values = new ContentValues();
+        values.put("destination", destination);
+        values.put("time", time);
+        getWritableDatabase().insertWithOnConflict(WATERMARK_TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Move the data of all closed months from the hot partition into read only archives and downsample the rows
+     * that are older than the configured retention age.
+     */
+    public void maintain() {
+        if (maintaining) {
+            return;
+        }
+        maintaining = true;
+        try {
+            int sealed = partitions.sealClosedPartitions(this);
+            Log.i(LOG_TAG, "sealed " + sealed + " partitions");
+
+            long days = CaptureConfig.get(context).retentionAge;
+            if (days > 0) {
+                Retention.apply(this, partitions, days * DAY);
+            }
+        } catch (SQLException e) {
+            Log.e(LOG_TAG, "db maintenance failed: " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Log.i(LOG_TAG, "db maintenance interrupted");
+        } finally {
+            maintaining = false;
+        }
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
         Log.i(LOG_TAG, "create db");
-        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE + "(" + //
+        createDictionaries(db);
+        createBase(db, TABLE);
+        createView(db);
+        Partitions.createTable(db);
+        createWatermarks(db);
+        Statistics.createTables(db);
+        Statistics.init(db);
+        Retention.createTables(db);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        // let INSERT OR REPLACE fire the delete triggers of the statistics
+        db.execSQL("PRAGMA recursive_triggers = ON");
+        if (!db.isReadOnly() && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            enableWal(db);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private void enableWal(SQLiteDatabase db) {
+        walEnabled = db.enableWriteAheadLogging();
+        if (walEnabled) {
+            // checkpoints are triggered explicitly, outside of capture bursts
+            Cursor cursor = db.rawQuery("PRAGMA wal_autocheckpoint = 0", null);
+            cursor.moveToFirst();
+            cursor.close();
+        }
+        Log.i(LOG_TAG, "write ahead logging enabled: " + walEnabled);
+    }
+
+    private void createWatermarks(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + WATERMARK_TABLE + "(" + //
+                " destination TEXT PRIMARY KEY, " + //
+                " time INT " + //
+                " );");
+    }
+
+    static void createBase(SQLiteDatabase db, String table) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + table + "(" + //
                 // location
-                " time INT PRIMARY KEY, " + //
+                " time INT NOT NULL, " + //
+                // SIM slot, the rows of all subscriptions of a fix have its time
+                " slot INT NOT NULL DEFAULT 0, " + //
                 " accuracy REAL, " + //
                 " altitude REAL, " + //
                 " satellites INT, " + //
@@ -139,17 +577,74 @@ public class DbHandler extends SQLiteOpenHelper {
                 " speed REAL, " + //
                 // signal
                 " signalStrength INT, " + //
-                " carrier TEXT, " + //
-                " androidRelease TEXT, " + //
-                " manufacturer TEXT, " + //
-        		" model TEXT, " + //
-                " device TEXT, " + //
-                " osVersion TEXT " + //
+                " carrierId INT, " + //
+                // device
+                " deviceId INT, " + //
+                // index
+                " quadkey INT, " + //
+                // time of the signal sample - time of the location (ms)
+                " signalSkew INT, " + //
+                // all signal metrics, see SignalVector
+                " signals BLOB, " + //
+                // satellites used in the fix
+                " meanSnr REAL, " + //
+                " maxSnr REAL, " + //
+                " constellations INT, " + //
+                // stationary runs: time is the time of the last sample
+                " startTime INT, " + //
+                " samples INT, " + //
+                " PRIMARY KEY (time, slot) " + //
+                " );");
+        SpatialIndex.createIndex(db, table);
+    }
+
+    static void createDictionaries(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + CARRIER_TABLE + "(" + //
+                " id INTEGER PRIMARY KEY, " + //
+                " name TEXT NOT NULL, " + //
+                " UNIQUE (name) " + //
+                " );");
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + DEVICE_TABLE + "(" + //
+                " id INTEGER PRIMARY KEY, " + //
+                " androidRelease TEXT NOT NULL, " + //
+                " manufacturer TEXT NOT NULL, " + //
+                " model TEXT NOT NULL, " + //
+                " device TEXT NOT NULL, " + //
+                " osVersion TEXT NOT NULL, " + //
+                " UNIQUE (androidRelease, manufacturer, model, device, osVersion) " + //
                 " );");
     }
 
+    static void createView(SQLiteDatabase db) {
+        db.execSQL("DROP VIEW IF EXISTS " + VIEW);
+        db.execSQL("CREATE VIEW " + VIEW + " AS SELECT " + //
+                " b.time AS time, b.slot AS slot, b.accuracy AS accuracy, b.altitude AS altitude, b.satellites AS satellites, " + //
+                " b.latitude AS latitude, b.longitude AS longitude, b.speed AS speed, " + //
+                " b.signalStrength AS signalStrength, c.name AS carrier, " + //
+                " d.androidRelease AS androidRelease, d.manufacturer AS manufacturer, d.model AS model, " + //
+                " d.device AS device, d.osVersion AS osVersion, b.signalSkew AS signalSkew, " + //
+                " b.signals AS signals, b.meanSnr AS meanSnr, b.maxSnr AS maxSnr, " + //
+                " b.constellations AS constellations, " + //
+                " IFNULL(b.startTime, b.time) AS startTime, IFNULL(b.samples, 1) AS samples " + //
+                " FROM " + TABLE + " b " + //
+                " LEFT JOIN " + CARRIER_TABLE + " c ON c.id = b.carrierId " + //
+                " LEFT JOIN " + DEVICE_TABLE + " d ON d.id = b.deviceId");
+    }
+
     @Override
-    public void close() {
+    public synchronized void close() {
+        if (insertStatement != null) {
+            insertStatement.close();
+        }
+        insertStatement = null;
+        insertStatementDb = null;
+        carrierIds.clear();
+        deviceIds.clear();
+        partitions.close();
+        if (reader != null) {
+            reader.close();
+            reader = null;
+        }
         super.close();
         instance = null;
     }
@@ -168,18 +663,89 @@ public class DbHandler extends SQLiteOpenHelper {
                 // add androidRelease
                 addColumn(db, "androidRelease");
             case 5:
-            case 6:
             	// add model specific stuff
                 addColumn(db, "manufacturer");
                 addColumn(db, "model");
                 addColumn(db, "device");
                 addColumn(db, "osVersion");
+            case 6:
+                // move carrier and device strings to dictionaries
+                normalize(db);
+            case 7:
+                // monthly partitions
+                Partitions.createTable(db);
+            case 8:
+                // spatial index
+                SpatialIndex.addTo(db, TABLE);
+                partitions.addSpatialIndex(db);
+            case 9:
+                // export progress
+                createWatermarks(db);
+            case 10:
+                // statistics
+                Statistics.createTables(db);
+                Statistics.init(db);
+                partitions.addArchivedRowsToStatistics(db);
+            case 11:
+                // millisecond timestamps, so that more than one fix per second can be stored
+                db.execSQL("UPDATE " + TABLE + " SET time = time * 1000");
+                db.execSQL("UPDATE " + WATERMARK_TABLE + " SET time = time * 1000 WHERE time >= 0");
+                partitions.timeToMilliseconds(db);
+                Statistics.init(db);
+            case 12:
+                // retention
+                Retention.createTables(db);
+            case 13:
+                // signal matching
+                db.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN signalSkew INT");
+                createView(db);
+                partitions.addColumn(db, "signalSkew", "INT");
+            case 14:
+                // signal vector
+                db.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN signals BLOB");
+                createView(db);
+                partitions.addColumn(db, "signals", "BLOB");
+            case 15:
+                // satellite statistics
+                db.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN meanSnr REAL");
+                db.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN maxSnr REAL");
+                db.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN constellations INT");
+                createView(db);
+                partitions.addColumn(db, "meanSnr", "REAL");
+                partitions.addColumn(db, "maxSnr", "REAL");
+                partitions.addColumn(db, "constellations", "INT");
+            case 16:
+                // stationary runs
+                db.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN startTime INT");
+                db.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN samples INT");
+                createView(db);
+                partitions.addColumn(db, "startTime", "INT");
+                partitions.addColumn(db, "samples", "INT");
+            case 17:
+                // rows of further SIM subscriptions have the time of the fix and their slot
+                keySlots(db);
+                partitions.addColumn(db, "slot", "INT NOT NULL DEFAULT 0");
 
             default:
                 break;
         }
     }
 
+    static boolean hasColumn(SQLiteDatabase db, String table, String column) {
+        Cursor cursor = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+        try {
+            int name = cursor.getColumnIndexOrThrow("name");
+            while (cursor.moveToNext()) {
+                if (column.equalsIgnoreCase(cursor.getString(name))) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            cursor.close();
+        }
+    }
+
     private void addColumn(SQLiteDatabase db, String colname) {
         Log.d(LOG_TAG, "add column "+colname);
         db.beginTransaction();
@@ -207,6 +773,67 @@ public class DbHandler extends SQLiteOpenHelper {
         }
     }
 
+    private void normalize(SQLiteDatabase db) {
+        Log.d(LOG_TAG, "move carrier and device data to dictionary tables");
+        String device = "IFNULL(androidRelease, ''), IFNULL(manufacturer, ''), IFNULL(model, ''), " + //
+                "IFNULL(device, ''), IFNULL(osVersion, '')";
+        db.beginTransaction();
+        try {
+            createDictionaries(db);
+            db.execSQL("INSERT OR IGNORE INTO " + CARRIER_TABLE + " (name) " + //
+                    " SELECT DISTINCT IFNULL(carrier, '') FROM " + TABLE);
+            db.execSQL("INSERT OR IGNORE INTO " + DEVICE_TABLE + //
+                    " (androidRelease, manufacturer, model, device, osVersion) " + //
+                    " SELECT DISTINCT " + device + " FROM " + TABLE);
+
+            db.execSQL("ALTER TABLE " + TABLE + " RENAME TO t1_backup");
+            createBase(db, TABLE);
+            db.execSQL("INSERT INTO " + TABLE + //
+                    " (time, accuracy, altitude, satellites, latitude, longitude, speed, signalStrength, " + //
+                    " carrierId, deviceId) SELECT " + //
+                    " b.time, b.accuracy, b.altitude, b.satellites, b.latitude, b.longitude, b.speed, " + //
+                    " b.signalStrength, c.id, d.id " + //
+                    " FROM t1_backup b " + //
+                    " JOIN " + CARRIER_TABLE + " c ON c.name = IFNULL(b.carrier, '') " + //
+                    " JOIN " + DEVICE_TABLE + " d ON " + //
+                    "  d.androidRelease = IFNULL(b.androidRelease, '') AND d.manufacturer = IFNULL(b.manufacturer, '') " + //
+                    "  AND d.model = IFNULL(b.model, '') AND d.device = IFNULL(b.device, '') " + //
+                    "  AND d.osVersion = IFNULL(b.osVersion, '')");
+            db.execSQL("DROP TABLE t1_backup");
+            createView(db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Rebuild the hot partition with the key (time, slot). The existing rows get slot 0.
+     */
+    private void keySlots(SQLiteDatabase db) {
+        Log.d(LOG_TAG, "add slot to the key");
+        String cols = "time, accuracy, altitude, satellites, latitude, longitude, speed, signalStrength, " + //
+                "carrierId, deviceId, quadkey, signalSkew, signals, meanSnr, maxSnr, constellations, startTime, " + //
+                "samples";
+        db.beginTransaction();
+        try {
+            // the index and the statistics triggers would move along with the renamed table
+            db.execSQL("DROP TRIGGER IF EXISTS " + TABLE + "_stats_insert");
+            db.execSQL("DROP TRIGGER IF EXISTS " + TABLE + "_stats_delete");
+            db.execSQL("DROP INDEX IF EXISTS " + TABLE + "_" + SpatialIndex.COLUMN);
+            db.execSQL("ALTER TABLE " + TABLE + " RENAME TO t1_backup");
+            createBase(db, TABLE);
+            db.execSQL("INSERT INTO " + TABLE + " (" + cols + ") SELECT " + cols + " FROM t1_backup");
+            db.execSQL("DROP TABLE t1_backup");
+            createView(db);
+            Statistics.createTables(db);
+            Statistics.init(db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
     @Override
     public void finalize() throws Throwable {
         super.finalize();
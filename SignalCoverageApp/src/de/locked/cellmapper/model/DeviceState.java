@@ -0,0 +1,114 @@
+package de.locked.cellmapper.model;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.ContentObserver;
+import android.location.LocationManager;
+import android.provider.Settings;
+import android.telephony.PhoneStateListener;
+import android.telephony.ServiceState;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Cache of device state that rarely changes: carrier name, airplane mode, GPS provider and mock locations. The
+ * values are read once and updated from service state changes, broadcasts and a settings observer, so reading them
+ * on every fix needs no IPC.
+ * <p/>
+ * All updates are delivered to the {@link CaptureThread}, reads are possible from any thread.
+ */
+public class DeviceState {
+    private static final String LOG_TAG = DeviceState.class.getName();
+    // singleton
+    private static DeviceState INSTANCE = null;
+
+    private final Context context;
+    private final TelephonyManager telephonyManager;
+    private volatile String carrier;
+    private volatile boolean airplaneMode;
+    private volatile boolean gpsEnabled;
+    private volatile boolean mockLocation;
+
+    private final PhoneStateListener serviceStateListener = new PhoneStateListener() {
+        @Override
+        public void onServiceStateChanged(ServiceState serviceState) {
+            carrier = telephonyManager.getNetworkOperatorName();
+            Log.d(LOG_TAG, "service state changed, carrier: " + carrier);
+        }
+    };
+
+    private final BroadcastReceiver receiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context c, Intent intent) {
+            if (Intent.ACTION_AIRPLANE_MODE_CHANGED.equals(intent.getAction())) {
+                airplaneMode = MobileStatusUtils.isAirplaneModeOn(context);
+                Log.d(LOG_TAG, "airplane mode: " + airplaneMode);
+            } else {
+                gpsEnabled = MobileStatusUtils.gpsEnabled(context);
+                Log.d(LOG_TAG, "gps enabled: " + gpsEnabled);
+            }
+        }
+    };
+
+    private DeviceState(Context context) {
+        this.context = context.getApplicationContext();
+        this.telephonyManager = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
+
+        carrier = telephonyManager.getNetworkOperatorName();
+        airplaneMode = MobileStatusUtils.isAirplaneModeOn(context);
+        gpsEnabled = MobileStatusUtils.gpsEnabled(context);
+        mockLocation = MobileStatusUtils.fakeLocationEnabled(context);
+
+        telephonyManager.listen(serviceStateListener, PhoneStateListener.LISTEN_SERVICE_STATE);
+        IntentFilter filter = new IntentFilter(Intent.ACTION_AIRPLANE_MODE_CHANGED);
+        filter.addAction(LocationManager.PROVIDERS_CHANGED_ACTION);
+        this.context.registerReceiver(receiver, filter, null, CaptureThread.getHandler());
+        this.context.getContentResolver().registerContentObserver(
+                Settings.Secure.getUriFor(Settings.Secure.ALLOW_MOCK_LOCATION), false,
+                new ContentObserver(CaptureThread.getHandler()) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        mockLocation = MobileStatusUtils.fakeLocationEnabled(DeviceState.this.context);
+                        Log.d(LOG_TAG, "mock locations: " + mockLocation);
+                    }
+                });
+    }
+
+    /**
+     * The instance is created on the {@link CaptureThread}, so that the service state callbacks are delivered there.
+     */
+    public static synchronized DeviceState get(final Context context) {
+        if (INSTANCE == null) {
+            INSTANCE = CaptureThread.call(new Callable<DeviceState>() {
+                @Override
+                public DeviceState call() {
+                    return new DeviceState(context);
+                }
+            });
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * @return the network operator name, see {@link TelephonyManager#getNetworkOperatorName()}
+     */
+    public String getCarrier() {
+        return carrier;
+    }
+
+    public boolean isAirplaneModeOn() {
+        return airplaneMode;
+    }
+
+    public boolean isGpsEnabled() {
+        return gpsEnabled;
+    }
+
+    public boolean isMockLocationEnabled() {
+        return mockLocation;
+    }
+}
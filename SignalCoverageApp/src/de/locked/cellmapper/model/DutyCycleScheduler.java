@@ -0,0 +1,217 @@
+package de.locked.cellmapper.model;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Runs location acquisition as duty cycles on the {@link CaptureThread}: a listen window in which the location is
+ * polled every poll interval, followed by a sleep window. Signal changes can trigger single polls while listening.
+ * <p/>
+ * Windows and polls are scheduled at fixed times relative to the start of their cycle, so delays don't add up.
+ * The delay of every scheduled event is recorded in {@link Metrics#CYCLE_JITTER}. The state is only touched on the
+ * capture thread; {@link #start()} and {@link #stop()} can be called from any thread.
+ */
+public class DutyCycleScheduler {
+    private static final String LOG_TAG = DutyCycleScheduler.class.getName();
+
+    /**
+     * The acquisition that is scheduled. All methods are called on the capture thread, the windows and the
+     * interval are read at the start of every cycle.
+     */
+    public interface Cycle {
+        /**
+         * @return false to skip the listen window, e.g. while GPS is disabled
+         */
+        boolean canListen();
+
+        void startListening();
+
+        void stopListening();
+
+        void poll();
+
+        /**
+         * @return length of the listen window in ms, 0 to listen until stopped
+         */
+        long getListenWindow();
+
+        /**
+         * @return length of the sleep window in ms
+         */
+        long getSleepWindow();
+
+        /**
+         * @return time between polls in ms, 0 to not poll
+         */
+        long getPollInterval();
+    }
+
+    private final Cycle cycle;
+    private final Handler handler = CaptureThread.getHandler();
+    // state of the capture thread, times are uptime ms
+    private boolean running = false;
+    private boolean listening = false;
+    private long cycleStart;
+    private long listenEnd;
+    private long nextPoll;
+    private long pollInterval;
+
+    private final Runnable listenTask = new Runnable() {
+        @Override
+        public void run() {
+            listen();
+        }
+    };
+    private final Runnable sleepTask = new Runnable() {
+        @Override
+        public void run() {
+            sleep();
+        }
+    };
+    private final Runnable pollTask = new Runnable() {
+        @Override
+        public void run() {
+            poll();
+        }
+    };
+
+    public DutyCycleScheduler(Cycle cycle) {
+        this.cycle = cycle;
+    }
+
+    /**
+     * Start the first cycle now, if not running yet.
+     */
+    public void start() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!running) {
+                    Log.d(LOG_TAG, "start");
+                    running = true;
+                    cycleStart = SystemClock.uptimeMillis();
+                    listen();
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop listening and cancel all scheduled events.
+     */
+    public void stop() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                Log.d(LOG_TAG, "stop");
+                running = false;
+                handler.removeCallbacks(listenTask);
+                handler.removeCallbacks(sleepTask);
+                handler.removeCallbacks(pollTask);
+                if (listening) {
+                    listening = false;
+                    cycle.stopListening();
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop and start again with a new cycle, e.g. to apply changed settings.
+     */
+    public void restart() {
+        stop();
+        start();
+    }
+
+    /**
+     * Start the next cycle right away if sleeping. The events are scheduled in uptime, which stands still while the
+     * CPU sleeps, so a wake up alarm has to end the sleep window.
+     */
+    public void wakeUp() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (running && !listening) {
+                    handler.removeCallbacks(listenTask);
+                    cycleStart = SystemClock.uptimeMillis();
+                    listen();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return true while in a listen window. Call on the capture thread.
+     */
+    public boolean isListening() {
+        return listening;
+    }
+
+    /**
+     * Poll once right away if listening. Call on the capture thread.
+     */
+    public void trigger() {
+        if (listening) {
+            Metrics.inc(Metrics.TRIGGERS);
+            cycle.poll();
+        }
+    }
+
+    private void listen() {
+        recordJitter(cycleStart);
+        Metrics.inc(Metrics.CYCLES);
+        if (!cycle.canListen()) {
+            Log.d(LOG_TAG, "can't listen, skip the listen window");
+            listenEnd = cycleStart;
+            scheduleNextCycle();
+            return;
+        }
+        listening = true;
+        cycle.startListening();
+
+        long window = cycle.getListenWindow();
+        listenEnd = window > 0 ? cycleStart + window : Long.MAX_VALUE;
+        if (window > 0) {
+            handler.postAtTime(sleepTask, listenEnd);
+        }
+        pollInterval = cycle.getPollInterval();
+        if (pollInterval > 0) {
+            nextPoll = cycleStart;
+            poll();
+        }
+    }
+
+    private void poll() {
+        recordJitter(nextPoll);
+        Metrics.inc(Metrics.POLLS);
+        cycle.poll();
+
+        // skip polls that are overdue already
+        long now = SystemClock.uptimeMillis();
+        do {
+            nextPoll += pollInterval;
+        } while (nextPoll <= now);
+        if (nextPoll < listenEnd) {
+            handler.postAtTime(pollTask, nextPoll);
+        }
+    }
+
+    private void sleep() {
+        recordJitter(listenEnd);
+        handler.removeCallbacks(pollTask);
+        listening = false;
+        cycle.stopListening();
+        scheduleNextCycle();
+    }
+
+    private void scheduleNextCycle() {
+        cycleStart = Math.max(listenEnd + cycle.getSleepWindow(), SystemClock.uptimeMillis());
+        handler.postAtTime(listenTask, cycleStart);
+    }
+
+    private static void recordJitter(long planned) {
+        Metrics.record(Metrics.CYCLE_JITTER, Math.max(0, SystemClock.uptimeMillis() - planned) * 1000);
+    }
+}
@@ -0,0 +1,47 @@
+package de.locked.cellmapper.model;
+
+import android.location.Location;
+import android.location.LocationManager;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Drops fixes that reach the {@link DataListener} more than once. In hybrid capture the passive provider forwards the
+ * GPS fixes of the active capture, and network fixes of other apps arrive in between.
+ * <ul>
+ * <li>A fix that is not newer than the last fix of its provider is a copy.</li>
+ * <li>A fix of another provider is dropped while the last GPS fix is younger than GPS_PRECEDENCE. It is less
+ * accurate and would only add a second row for the same place.</li>
+ * </ul>
+ * Only used on the capture thread.
+ */
+class FixDeduplicator {
+    static final long GPS_PRECEDENCE = 30 * 1000; // ms
+
+    // time of the last fix per provider
+    private final Map<String, Long> lastTimes = new HashMap<String, Long>();
+    // elapsed realtime when the last GPS fix arrived, fix times of different providers don't compare well
+    private long lastGpsArrival = -1;
+
+    /**
+     * @param now elapsed realtime in ms
+     * @return false if the fix is a copy or superseded by GPS
+     */
+    boolean accept(Location location, long now) {
+        String provider = location.getProvider();
+        Long last = lastTimes.get(provider);
+        if (last != null && location.getTime() <= last) {
+            return false;
+        }
+        boolean gps = LocationManager.GPS_PROVIDER.equals(provider);
+        if (!gps && lastGpsArrival >= 0 && now - lastGpsArrival < GPS_PRECEDENCE) {
+            return false;
+        }
+        lastTimes.put(provider, location.getTime());
+        if (gps) {
+            lastGpsArrival = now;
+        }
+        return true;
+    }
+}
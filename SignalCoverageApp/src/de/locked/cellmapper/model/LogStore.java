@@ -0,0 +1,698 @@
+package de.locked.cellmapper.model;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+/**
+ * Append only measurement store. Much cheaper to write than SQLite as a row is a fixed size record that is
+ * copied into a memory mapped file.
+ * <p/>
+ * The log consists of segments of SEGMENT_RECORDS records, named by the time of their first record. Only the
+ * last segment (the tail) is written to. The (time, slot) keys are strictly increasing over the whole log, older
+ * fixes are dropped. Every INDEX_INTERVAL-th time of a segment is kept in a sparse index, so a time is found by two
+ * binary searches and a short scan.
+ * <p/>
+ * Record layout (offset in bytes):
+ * <pre>
+ *  0 time (long, ms)     8 accuracy (float)   12 altitude (double)   20 satellites (int)
+ * 24 latitude (double)  32 longitude (double) 40 speed (float)       44 signalStrength (int)
+ * 48 carrierId (int)    52 deviceId (int)     56 signalSkew (int)    60 CRC32 of bytes 0-59 (int)
+ * </pre>
+ * The carrierId field holds the SIM slot in the bits above CARRIER_BITS, records of older versions have slot 0.
+ * Carrier and device strings are kept in an append only dictionary file. New entries are synced before the
+ * first record referencing them is written. After a crash, the tail is recovered up to the last record with a
+ * valid checksum and increasing time; the rest of the tail is cleared.
+ */
+public class LogStore implements MeasurementStore {
+    private static final String LOG_TAG = LogStore.class.getName();
+    private static final SimpleDateFormat sdf = new SimpleDateFormat("y-MM-dd HH:mm:ss", Locale.US);
+    // the columns of DbHandler.VIEW
+    static final String[] COLUMNS = {"time", "slot", "accuracy", "altitude", "satellites", "latitude", "longitude",
+            "speed", "signalStrength", "carrier", "androidRelease", "manufacturer", "model", "device", "osVersion",
+            "signalSkew"};
+
+    private static final int RECORD_SIZE = 64; // bytes
+    private static final int CHECKSUM_OFFSET = 60;
+    private static final int CARRIER_OFFSET = 48;
+    // carrierId field: bits of the carrier id, the slot is above them
+    private static final int CARRIER_BITS = 24;
+    private static final int CARRIER_MASK = (1 << CARRIER_BITS) - 1;
+    private static final int SEGMENT_RECORDS = 16 * 1024;
+    private static final int SEGMENT_SIZE = SEGMENT_RECORDS * RECORD_SIZE; // 1 MiB
+    private static final int INDEX_INTERVAL = 128;
+    // force the tail to disk during capture once this many records were appended since the last sync
+    private static final int MAX_UNSYNCED = 1000;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String CARRIER = "c";
+    private static final String DEVICE = "d";
+
+    private static LogStore instance = null;
+
+    private final File dir;
+    private final File dictionaryFile;
+    private final File watermarkFile;
+    // sorted by time
+    private final List<Segment> segments = new ArrayList<Segment>();
+    // dictionaries: id = list index
+    private final List<String> carriers = new ArrayList<String>();
+    private final List<String[]> devices = new ArrayList<String[]>();
+    private final HashMap<String, Integer> carrierIds = new HashMap<String, Integer>();
+    private final HashMap<String, Integer> deviceIds = new HashMap<String, Integer>();
+    private final Properties watermarks = new Properties();
+    private final CRC32 crc = new CRC32();
+    private final byte[] scratch = new byte[CHECKSUM_OFFSET];
+    private boolean loaded = false;
+    private MappedByteBuffer tail;
+    private int unsynced = 0;
+    // last mapped segment for reading
+    private Segment readSegment;
+    private ByteBuffer readBuffer;
+    // carrierId -> rows, computed on first use
+    private Map<Integer, Integer> carrierRows;
+
+    private static class Segment {
+        final File file;
+        final long firstTime;
+        int count = SEGMENT_RECORDS;
+        long lastTime;
+        int lastSlot;
+        // checksums were verified and count is known
+        boolean verified = false;
+        long[] index;
+
+        Segment(File file, long firstTime) {
+            this.file = file;
+            this.firstTime = firstTime;
+            this.index = new long[SEGMENT_RECORDS / INDEX_INTERVAL];
+        }
+    }
+
+    public static synchronized LogStore get(Context context) {
+        if (instance == null) {
+            instance = new LogStore(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private LogStore(Context context) {
+        this(context.getDir("log", Context.MODE_PRIVATE));
+    }
+
+    /**
+     * A separate store in the given directory, for benchmarks.
+     */
+    LogStore(File dir) {
+        this.dir = dir;
+        this.dictionaryFile = new File(dir, "dictionary");
+        this.watermarkFile = new File(dir, "watermarks");
+    }
+
+    private void load() throws IOException {
+        if (loaded) {
+            return;
+        }
+        loadDictionary();
+        loadWatermarks();
+        segments.clear();
+
+        File[] files = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        for (File file : files == null ? new File[0] : files) {
+            String name = file.getName();
+            try {
+                segments.add(new Segment(file, Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()))));
+            } catch (NumberFormatException e) {
+                Log.w(LOG_TAG, "ignoring " + file);
+            }
+        }
+        Collections.sort(segments, new Comparator<Segment>() {
+            @Override
+            public int compare(Segment a, Segment b) {
+                return a.firstTime < b.firstTime ? -1 : (a.firstTime == b.firstTime ? 0 : 1);
+            }
+        });
+        if (!segments.isEmpty()) {
+            openTail(segments.get(segments.size() - 1));
+        }
+        loaded = true;
+        Log.i(LOG_TAG, "loaded " + segments.size() + " segments");
+    }
+
+    private void openTail(Segment segment) throws IOException {
+        tail = map(segment.file, FileChannel.MapMode.READ_WRITE);
+        verify(segment, tail);
+        // clear what a crash may have left behind the last valid record
+        if (segment.count < SEGMENT_RECORDS && tail.getLong(segment.count * RECORD_SIZE) != 0) {
+            Log.w(LOG_TAG, "recovering tail of " + segment.file + " after record " + segment.count);
+            for (int i = segment.count * RECORD_SIZE; i < SEGMENT_SIZE; i += 8) {
+                tail.putLong(i, 0);
+            }
+            tail.force();
+        }
+    }
+
+    private static MappedByteBuffer map(File file, FileChannel.MapMode mode) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw");
+        try {
+            long size = mode == FileChannel.MapMode.READ_ONLY ? Math.min(raf.length(), SEGMENT_SIZE) : SEGMENT_SIZE;
+            return raf.getChannel().map(mode, 0, size);
+        } finally {
+            // the mapping stays valid
+            raf.close();
+        }
+    }
+
+    /**
+     * Count the valid records of the segment and build its index.
+     */
+    private void verify(Segment segment, ByteBuffer buffer) {
+        int max = buffer.capacity() / RECORD_SIZE;
+        long last = 0;
+        int lastSlot = 0;
+        int n = 0;
+        while (n < max && isValid(buffer, n, last, lastSlot)) {
+            last = time(buffer, n);
+            lastSlot = slot(buffer, n);
+            if (n % INDEX_INTERVAL == 0) {
+                segment.index[n / INDEX_INTERVAL] = last;
+            }
+            n++;
+        }
+        if (n < max) {
+            Log.d(LOG_TAG, segment.file.getName() + " ends after " + n + " records");
+        }
+        segment.count = n;
+        segment.lastTime = last;
+        segment.lastSlot = lastSlot;
+        segment.verified = true;
+    }
+
+    private boolean isValid(ByteBuffer buffer, int i, long previousTime, int previousSlot) {
+        long time = time(buffer, i);
+        return time > 0 && after(time, slot(buffer, i), previousTime, previousSlot)
+                && checksum(buffer, i * RECORD_SIZE) == buffer.getInt(i * RECORD_SIZE + CHECKSUM_OFFSET);
+    }
+
+    /**
+     * @return true if the key (time, slot) is greater than (afterTime, afterSlot)
+     */
+    private static boolean after(long time, int slot, long afterTime, int afterSlot) {
+        return time > afterTime || (time == afterTime && slot > afterSlot);
+    }
+
+    private int checksum(ByteBuffer buffer, int offset) {
+        for (int j = 0; j < CHECKSUM_OFFSET; j++) {
+            scratch[j] = buffer.get(offset + j);
+        }
+        crc.reset();
+        crc.update(scratch, 0, CHECKSUM_OFFSET);
+        return (int) crc.getValue();
+    }
+
+    private static long time(ByteBuffer buffer, int i) {
+        return buffer.getLong(i * RECORD_SIZE);
+    }
+
+    private static int slot(ByteBuffer buffer, int i) {
+        return buffer.getInt(i * RECORD_SIZE + CARRIER_OFFSET) >>> CARRIER_BITS;
+    }
+
+    private static int carrierId(ByteBuffer buffer, int i) {
+        return buffer.getInt(i * RECORD_SIZE + CARRIER_OFFSET) & CARRIER_MASK;
+    }
+
+    /**
+     * @return the verified mapping of the segment
+     */
+    private ByteBuffer buffer(Segment segment) throws IOException {
+        if (segment == tailSegment()) {
+            return tail;
+        }
+        if (segment != readSegment) {
+            readBuffer = map(segment.file, FileChannel.MapMode.READ_ONLY);
+            readSegment = segment;
+        }
+        if (!segment.verified) {
+            verify(segment, readBuffer);
+        }
+        return readBuffer;
+    }
+
+    private Segment tailSegment() {
+        return segments.isEmpty() ? null : segments.get(segments.size() - 1);
+    }
+
+    @Override
+    public synchronized int saveAll(List<Measurement> measurements) {
+        int written = 0;
+        // written or dropped, the rest is retried
+        int handled = 0;
+        try {
+            load();
+            for (Measurement m : measurements) {
+                Segment segment = tailSegment();
+                if (segment != null && !after(m.time, m.slot, segment.lastTime, segment.lastSlot)) {
+                    Log.d(LOG_TAG, "dropping fix older than the last one: " + m.time);
+                    handled++;
+                    continue;
+                }
+                if (segment == null || segment.count == SEGMENT_RECORDS) {
+                    segment = newSegment(m.time);
+                }
+                append(segment, m);
+                written++;
+                handled++;
+            }
+            Log.i(LOG_TAG, "wrote " + written + " rows to log");
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+        }
+        unsynced += written;
+        return handled;
+    }
+
+    private Segment newSegment(long firstTime) throws IOException {
+        if (tail != null) {
+            tail.force();
+        }
+        Segment segment = new Segment(new File(dir, firstTime + SEGMENT_SUFFIX), firstTime);
+        segment.count = 0;
+        segment.verified = true;
+        tail = map(segment.file, FileChannel.MapMode.READ_WRITE);
+        segments.add(segment);
+        return segment;
+    }
+
+    private void append(Segment segment, Measurement m) throws IOException {
+        int carrierId = getCarrierId(m.carrier);
+        int deviceId = getDeviceId(m.androidRelease, m.manufacturer, m.model, m.device, m.osVersion);
+
+        int offset = segment.count * RECORD_SIZE;
+        tail.putLong(offset, m.time);
+        tail.putFloat(offset + 8, m.accuracy);
+        tail.putDouble(offset + 12, m.altitude);
+        tail.putInt(offset + 20, m.satellites);
+        tail.putDouble(offset + 24, m.latitude);
+        tail.putDouble(offset + 32, m.longitude);
+        tail.putFloat(offset + 40, m.speed);
+        tail.putInt(offset + 44, m.signalStrength);
+        tail.putInt(offset + CARRIER_OFFSET, m.slot << CARRIER_BITS | carrierId);
+        tail.putInt(offset + 52, deviceId);
+        tail.putInt(offset + 56, (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, m.signalSkew)));
+        tail.putInt(offset + CHECKSUM_OFFSET, checksum(tail, offset));
+
+        if (segment.count % INDEX_INTERVAL == 0) {
+            segment.index[segment.count / INDEX_INTERVAL] = m.time;
+        }
+        segment.count++;
+        segment.lastTime = m.time;
+        segment.lastSlot = m.slot;
+        if (carrierRows != null) {
+            Integer rows = carrierRows.get(carrierId);
+            carrierRows.put(carrierId, rows == null ? 1 : rows + 1);
+        }
+    }
+
+    @Override
+    public synchronized boolean needsSync() {
+        return unsynced > MAX_UNSYNCED;
+    }
+
+    @Override
+    public synchronized void sync() {
+        if (tail != null) {
+            tail.force();
+        }
+        unsynced = 0;
+    }
+
+    /**
+     * @return {segment, record} of the first record with a time greater than the given one
+     */
+    private int[] find(long after) throws IOException {
+        // last segment starting at or before the time
+        int lo = 0;
+        int hi = segments.size() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (segments.get(mid).firstTime <= after) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        for (int s = lo; s < segments.size(); s++) {
+            Segment segment = segments.get(s);
+            ByteBuffer buffer = buffer(segment);
+            if (segment.count == 0 || segment.lastTime <= after) {
+                continue;
+            }
+            // last block starting at or before the time
+            int blocks = (segment.count + INDEX_INTERVAL - 1) / INDEX_INTERVAL;
+            int b = 0;
+            int bHi = blocks - 1;
+            while (b < bHi) {
+                int mid = (b + bHi + 1) >>> 1;
+                if (segment.index[mid] <= after) {
+                    b = mid;
+                } else {
+                    bHi = mid - 1;
+                }
+            }
+            for (int i = b * INDEX_INTERVAL; i < segment.count; i++) {
+                if (time(buffer, i) > after) {
+                    return new int[]{s, i};
+                }
+            }
+        }
+        return new int[]{segments.size(), 0};
+    }
+
+    private Object[] row(ByteBuffer buffer, int i) {
+        int offset = i * RECORD_SIZE;
+        int carrierId = carrierId(buffer, i);
+        int deviceId = buffer.getInt(offset + 52);
+        String carrier = carrierId < carriers.size() ? carriers.get(carrierId) : null;
+        String[] device = deviceId < devices.size() ? devices.get(deviceId) : new String[5];
+        return new Object[]{buffer.getLong(offset), slot(buffer, i), buffer.getFloat(offset + 8), buffer.getDouble(offset + 12),
+                buffer.getInt(offset + 20), buffer.getDouble(offset + 24), buffer.getDouble(offset + 32),
+                buffer.getFloat(offset + 40), buffer.getInt(offset + 44), carrier,
+                device[0], device[1], device[2], device[3], device[4], buffer.getInt(offset + 56)};
+    }
+
+    private synchronized Cursor page(BoundingBox bbox, long afterTime, int afterSlot, long to, int limit) {
+        MatrixCursor cursor = new MatrixCursor(COLUMNS, limit);
+        try {
+            load();
+            // the further slots of afterTime are skipped below
+            int[] position = find(afterTime - 1);
+            int rows = 0;
+            for (int s = position[0]; s < segments.size() && rows < limit; s++) {
+                Segment segment = segments.get(s);
+                ByteBuffer buffer = buffer(segment);
+                for (int i = s == position[0] ? position[1] : 0; i < segment.count && rows < limit; i++) {
+                    int offset = i * RECORD_SIZE;
+                    if (time(buffer, i) >= to) {
+                        return cursor;
+                    }
+                    if (!after(time(buffer, i), slot(buffer, i), afterTime, afterSlot)) {
+                        continue;
+                    }
+                    if (bbox == null || bbox.contains(buffer.getDouble(offset + 24), buffer.getDouble(offset + 32))) {
+                        cursor.addRow(row(buffer, i));
+                        rows++;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+        }
+        return cursor;
+    }
+
+    @Override
+    public StreamingCursor stream(final BoundingBox bbox, long from, final long to) {
+        return new StreamingCursor(new StreamingCursor.PageSource() {
+            @Override
+            public Cursor page(long afterTime, int afterSlot, int limit) {
+                return LogStore.this.page(bbox, afterTime, afterSlot, to, limit);
+            }
+        }, from);
+    }
+
+    @Override
+    public synchronized int getRows() {
+        return getRows(0);
+    }
+
+    @Override
+    public synchronized int getRows(long from) {
+        int rows = 0;
+        try {
+            load();
+            int[] position = find(from - 1);
+            for (int s = position[0]; s < segments.size(); s++) {
+                Segment segment = segments.get(s);
+                buffer(segment);
+                rows += segment.count - (s == position[0] ? position[1] : 0);
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+        }
+        return rows;
+    }
+
+    @Override
+    public synchronized Map<String, Integer> getRowsPerCarrier() {
+        final Map<Integer, Integer> counts;
+        try {
+            counts = countCarriers();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+            return new LinkedHashMap<String, Integer>();
+        }
+        List<Integer> ids = new ArrayList<Integer>(counts.keySet());
+        Collections.sort(ids, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return counts.get(b).compareTo(counts.get(a));
+            }
+        });
+        Map<String, Integer> result = new LinkedHashMap<String, Integer>();
+        for (Integer id : ids) {
+            result.put(id < carriers.size() ? carriers.get(id) : "?", counts.get(id));
+        }
+        return result;
+    }
+
+    private Map<Integer, Integer> countCarriers() throws IOException {
+        load();
+        if (carrierRows == null) {
+            Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+            for (Segment segment : segments) {
+                ByteBuffer buffer = buffer(segment);
+                for (int i = 0; i < segment.count; i++) {
+                    int carrierId = carrierId(buffer, i);
+                    Integer rows = counts.get(carrierId);
+                    counts.put(carrierId, rows == null ? 1 : rows + 1);
+                }
+            }
+            carrierRows = counts;
+        }
+        return carrierRows;
+    }
+
+    @Override
+    public synchronized long getLastTime() {
+        try {
+            load();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+        }
+        Segment segment = tailSegment();
+        return segment == null || segment.count == 0 ? -1 : segment.lastTime;
+    }
+
+    @Override
+    public String getLastEntryString() {
+        long time = getLastTime();
+        return time < 0 ? "" : sdf.format(new Date(time));
+    }
+
+    @Override
+    public synchronized String getLastRowAsString() {
+        MatrixCursor cursor = new MatrixCursor(COLUMNS, 1);
+        if (getLastTime() >= 0) {
+            Segment segment = tailSegment();
+            cursor.addRow(row(tail, segment.count - 1));
+        }
+        return DbHandler.rowToString(cursor);
+    }
+
+    @Override
+    public synchronized long getWatermark(String destination) {
+        try {
+            load();
+            return Long.parseLong(watermarks.getProperty(destination, "-1"));
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+        } catch (NumberFormatException e) {
+            Log.e(LOG_TAG, "invalid watermark for " + destination, e);
+        }
+        return -1;
+    }
+
+    @Override
+    public synchronized void setWatermark(String destination, long time) {
+        try {
+            load();
+            watermarks.setProperty(destination, Long.toString(time));
+            // replace the file atomically
+            File tmp = new File(dir, watermarkFile.getName() + ".tmp");
+            FileOutputStream os = new FileOutputStream(tmp);
+            try {
+                watermarks.store(os, null);
+                os.getFD().sync();
+            } finally {
+                os.close();
+            }
+            if (!tmp.renameTo(watermarkFile)) {
+                throw new IOException("could not replace " + watermarkFile);
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+        }
+    }
+
+    private void loadWatermarks() throws IOException {
+        watermarks.clear();
+        if (!watermarkFile.exists()) {
+            return;
+        }
+        FileInputStream is = new FileInputStream(watermarkFile);
+        try {
+            watermarks.load(is);
+        } finally {
+            is.close();
+        }
+    }
+
+    private int getCarrierId(String carrier) throws IOException {
+        String name = clean(carrier);
+        Integer id = carrierIds.get(name);
+        if (id == null) {
+            id = carriers.size();
+            writeDictionary(CARRIER + "\t" + name);
+            carriers.add(name);
+            carrierIds.put(name, id);
+        }
+        return id;
+    }
+
+    private int getDeviceId(String... values) throws IOException {
+        String[] device = new String[values.length];
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            device[i] = clean(values[i]);
+            key.append(i == 0 ? "" : "\t").append(device[i]);
+        }
+        Integer id = deviceIds.get(key.toString());
+        if (id == null) {
+            id = devices.size();
+            writeDictionary(DEVICE + "\t" + key);
+            devices.add(device);
+            deviceIds.put(key.toString(), id);
+        }
+        return id;
+    }
+
+    private static String clean(String value) {
+        return value == null ? "" : value.replace('\t', ' ').replace('\n', ' ');
+    }
+
+    private void writeDictionary(String line) throws IOException {
+        FileOutputStream os = new FileOutputStream(dictionaryFile, true);
+        try {
+            os.write((line + "\n").getBytes("UTF-8"));
+            os.getFD().sync();
+        } finally {
+            os.close();
+        }
+    }
+
+    private void loadDictionary() throws IOException {
+        carriers.clear();
+        devices.clear();
+        carrierIds.clear();
+        deviceIds.clear();
+        if (!dictionaryFile.exists()) {
+            return;
+        }
+        truncateIncompleteLine(dictionaryFile);
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(dictionaryFile), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (CARRIER.equals(fields[0]) && fields.length == 2) {
+                    carrierIds.put(fields[1], carriers.size());
+                    carriers.add(fields[1]);
+                } else if (DEVICE.equals(fields[0]) && fields.length == 6) {
+                    String[] device = new String[5];
+                    System.arraycopy(fields, 1, device, 0, 5);
+                    deviceIds.put(line.substring(2), devices.size());
+                    devices.add(device);
+                } else {
+                    Log.w(LOG_TAG, "invalid dictionary entry: " + line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Remove an entry that was only partially written before a crash.
+     */
+    private static void truncateIncompleteLine(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long length = raf.length();
+            while (length > 0) {
+                raf.seek(length - 1);
+                if (raf.read() == '\n') {
+                    break;
+                }
+                length--;
+            }
+            if (length < raf.length()) {
+                Log.w(LOG_TAG, "truncating incomplete entry of " + file);
+                raf.setLength(length);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        sync();
+        tail = null;
+        readBuffer = null;
+        readSegment = null;
+        carrierRows = null;
+        segments.clear();
+        loaded = false;
+    }
+}
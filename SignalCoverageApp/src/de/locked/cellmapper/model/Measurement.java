@@ -0,0 +1,96 @@
+package de.locked.cellmapper.model;
+
+import android.location.Location;
+
+/**
+ * One row of measured data (location + signal + device) as it is handed from the listener to the database.
+ */
+public class Measurement {
+    // location
+    // ms, of the last sample of a run. The rows of all SIM subscriptions of a fix have its time, (time, slot) is
+    // the key.
+    public final long time;
+    // SIM slot of the subscription the signal belongs to
+    public final int slot;
+    // stationary runs, see StationaryCompressor
+    public final long startTime; // ms
+    public final int samples;
+    public final float accuracy;
+    public final double altitude;
+    public final int satellites; // used in the fix
+    public final float meanSnr; // of the satellites used in the fix, dB-Hz
+    public final float maxSnr;
+    public final int constellations; // number of satellite systems used in the fix
+    public final double latitude;
+    public final double longitude;
+    public final float speed;
+    // signal
+    public final int signalStrength; // GSM asu, 99 = unknown
+    // all signal metrics, see SignalVector
+    public final byte[] signals;
+    // time of the signal sample - time of the location
+    public final long signalSkew; // ms
+    public final String carrier;
+    // device
+    public final String androidRelease;
+    public final String manufacturer;
+    public final String model;
+    public final String device;
+    public final String osVersion;
+
+    Measurement(Location location, int slot, SignalVector signal, long signalSkew, SatelliteStats satellites,
+                String carrier,
+                       String androidRelease, String manufacturer, String model, String device, String osVersion) {
+        this.time = location.getTime();
+        this.slot = slot;
+        this.startTime = time;
+        this.samples = 1;
+        this.accuracy = location.getAccuracy();
+        this.altitude = location.getAltitude();
+        this.satellites = satellites.inFix;
+        this.meanSnr = satellites.meanSnr;
+        this.maxSnr = satellites.maxSnr;
+        this.constellations = satellites.constellations;
+        this.latitude = location.getLatitude();
+        this.longitude = location.getLongitude();
+        this.speed = location.getSpeed();
+        this.signalStrength = signal.has(SignalVector.GSM_SIGNAL_STRENGTH)
+                ? signal.get(SignalVector.GSM_SIGNAL_STRENGTH) : 99;
+        this.signals = signal.encode();
+        this.signalSkew = signalSkew;
+        this.carrier = carrier == null ? "" : carrier;
+        this.androidRelease = androidRelease;
+        this.manufacturer = manufacturer;
+        this.model = model;
+        this.device = device;
+        this.osVersion = osVersion;
+    }
+
+    /**
+     * Extend the run of the measurement by another sample.
+     */
+    Measurement(Measurement run, long time, int samples) {
+        this.time = time;
+        this.slot = run.slot;
+        this.startTime = run.startTime;
+        this.samples = samples;
+        this.accuracy = run.accuracy;
+        this.altitude = run.altitude;
+        this.satellites = run.satellites;
+        this.meanSnr = run.meanSnr;
+        this.maxSnr = run.maxSnr;
+        this.constellations = run.constellations;
+        this.latitude = run.latitude;
+        this.longitude = run.longitude;
+        this.speed = run.speed;
+        this.signalStrength = run.signalStrength;
+        this.signals = run.signals;
+        this.signalSkew = run.signalSkew;
+        this.carrier = run.carrier;
+        this.androidRelease = run.androidRelease;
+        this.manufacturer = run.manufacturer;
+        this.model = run.model;
+        this.device = run.device;
+        this.osVersion = run.osVersion;
+    }
+}
@@ -0,0 +1,249 @@
+package de.locked.cellmapper.model;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Write-behind buffer for measurements. Rows are queued in memory and written to the configured store in one
+ * transaction as soon as either flushBatchSize rows are queued or the oldest queued row is older than
+ * flushInterval.
+ * <p/>
+ * Call {@link #flush()} before the capturing component goes away, otherwise queued rows are lost.
+ * <p/>
+ * If the store fails to write a batch, the rows from the failed one on are written one at a time. A row that fails
+ * while the rows after it are written is invalid and dropped. If MAX_SINGLE_FAILURES rows in a row fail, the store
+ * fails as a whole: the rows are put back at the front of the queue and retried after a delay that doubles from
+ * MIN_RETRY_DELAY up to MAX_RETRY_DELAY. Full batches don't trigger writes while retrying, and the queue keeps
+ * the newest MAX_QUEUE rows only.
+ * <p/>
+ * Writes happen on a dedicated writer thread. The store is synced (e.g. the write ahead log is checkpointed) once
+ * no rows were written for SYNC_DELAY, so that syncing doesn't slow down bursts of captured data.
+ */
+public class MeasurementBuffer {
+    private static final String LOG_TAG = MeasurementBuffer.class.getName();
+    // singleton
+    private static MeasurementBuffer INSTANCE = null;
+    private static final long SYNC_DELAY = 30 * 1000; // ms
+    private static final long MIN_RETRY_DELAY = 1000; // ms
+    private static final long MAX_RETRY_DELAY = 5 * 60 * 1000; // ms
+    private static final int MAX_SINGLE_FAILURES = 3;
+    // rows, bounds the memory while the store fails
+    private static final int MAX_QUEUE = 10000;
+
+    private final Context context;
+    // the store that was written last
+    private volatile MeasurementStore store;
+    private final Handler handler;
+    private List<Measurement> queue = new ArrayList<Measurement>();
+    // serializes writing, the queue itself is guarded by this
+    private final Object writeLock = new Object();
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+    private final Runnable syncTask = new Runnable() {
+        @Override
+        public void run() {
+            sync();
+        }
+    };
+    private int flushBatchSize;
+    private long flushInterval; // ms
+    // delay of the next retry, 0 if the last write succeeded. Guarded by this
+    private long retryDelay = 0;
+
+    private MeasurementBuffer(Context context) {
+        this.context = context.getApplicationContext();
+        HandlerThread writer = new HandlerThread("db writer");
+        writer.start();
+        Metrics.inc(Metrics.THREADS_STARTED);
+        this.handler = new Handler(writer.getLooper());
+
+        apply(CaptureConfig.addListener(context, new CaptureConfig.Listener() {
+            @Override
+            public void onConfigChanged(CaptureConfig config, int changes) {
+                if ((changes & CaptureConfig.WRITE) != 0) {
+                    apply(config);
+                }
+            }
+        }));
+    }
+
+    public static synchronized MeasurementBuffer get(Context context) {
+        if (INSTANCE == null) {
+            INSTANCE = new MeasurementBuffer(context);
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * Queue a measurement. Schedules writing the queue if the batch is full.
+     */
+    public synchronized void add(Measurement measurement) {
+        addAll(Collections.singletonList(measurement));
+    }
+
+    /**
+     * Queue measurements that are written in the same transaction.
+     */
+    public synchronized void addAll(List<Measurement> measurements) {
+        int before = queue.size();
+        queue.addAll(measurements);
+        trim();
+        if (retryDelay > 0) {
+            // the retry is scheduled already
+            return;
+        }
+        if (queue.size() >= flushBatchSize) {
+            handler.removeCallbacks(flushTask);
+            handler.post(flushTask);
+        } else if (before == 0) {
+            handler.postDelayed(flushTask, flushInterval);
+        }
+    }
+
+    /**
+     * Write all queued measurements to the store. The queue is swapped before writing, so {@link #add(Measurement)}
+     * never waits for the store.
+     */
+    public void flush() {
+        synchronized (writeLock) {
+            List<Measurement> batch;
+            synchronized (this) {
+                handler.removeCallbacks(flushTask);
+                if (queue.isEmpty()) {
+                    return;
+                }
+                batch = queue;
+                queue = new ArrayList<Measurement>();
+            }
+            Log.d(LOG_TAG, "flushing " + batch.size() + " measurements");
+            MeasurementStore current = MeasurementStores.get(context);
+            if (store != null && store != current) {
+                // the engine was changed
+                store.sync();
+            }
+            store = current;
+            long start = System.nanoTime();
+            int written = store.saveAll(batch);
+            Metrics.recordSince(Metrics.DB_WRITE, start);
+            Metrics.add(Metrics.ROWS_WRITTEN, written);
+            List<Measurement> failed = written < batch.size()
+                    ? writeSingly(batch.subList(written, batch.size())) : Collections.<Measurement>emptyList();
+            if (!failed.isEmpty()) {
+                retry(failed);
+            } else {
+                recovered();
+            }
+
+            handler.removeCallbacks(syncTask);
+            if (store.needsSync()) {
+                handler.post(syncTask);
+            } else {
+                handler.postDelayed(syncTask, SYNC_DELAY);
+            }
+        }
+    }
+
+    /**
+     * Write the rows one at a time to tell invalid rows from a failing store. Invalid rows are dropped.
+     *
+     * @return the rows to retry, empty if all rows were written or dropped
+     */
+    private List<Measurement> writeSingly(List<Measurement> rows) {
+        List<Measurement> failed = new ArrayList<Measurement>();
+        for (int i = 0; i < rows.size(); i++) {
+            Measurement m = rows.get(i);
+            if (store.saveAll(Collections.singletonList(m)) == 1) {
+                Metrics.inc(Metrics.ROWS_WRITTEN);
+                if (!failed.isEmpty()) {
+                    // the store works, the rows before are invalid
+                    for (Measurement invalid : failed) {
+                        Log.e(LOG_TAG, "dropping measurement at time " + invalid.time + ", slot " + invalid.slot
+                                + " that can't be written");
+                    }
+                    Metrics.add(Metrics.ROWS_DROPPED, failed.size());
+                    failed.clear();
+                }
+            } else {
+                failed.add(m);
+                if (failed.size() >= MAX_SINGLE_FAILURES) {
+                    failed.addAll(rows.subList(i + 1, rows.size()));
+                    break;
+                }
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Keep the newest MAX_QUEUE rows.
+     */
+    private synchronized void trim() {
+        int excess = queue.size() - MAX_QUEUE;
+        if (excess > 0) {
+            Log.w(LOG_TAG, "queue full, dropping the " + excess + " oldest measurements");
+            Metrics.add(Metrics.ROWS_DROPPED, excess);
+            queue.subList(0, excess).clear();
+        }
+    }
+
+    /**
+     * Put the rows back at the front of the queue and schedule the next write with backoff.
+     */
+    private synchronized void retry(List<Measurement> failed) {
+        List<Measurement> requeued = new ArrayList<Measurement>(failed.size() + queue.size());
+        requeued.addAll(failed);
+        requeued.addAll(queue);
+        queue = requeued;
+        trim();
+        retryDelay = retryDelay == 0 ? MIN_RETRY_DELAY : Math.min(2 * retryDelay, MAX_RETRY_DELAY);
+        Log.w(LOG_TAG, failed.size() + " measurements not written, retry in " + retryDelay + "ms");
+        handler.removeCallbacks(flushTask);
+        handler.postDelayed(flushTask, retryDelay);
+    }
+
+    /**
+     * Schedule the rows queued during the retries, {@link #addAll(List)} didn't.
+     */
+    private synchronized void recovered() {
+        if (retryDelay == 0) {
+            return;
+        }
+        retryDelay = 0;
+        if (queue.size() >= flushBatchSize) {
+            handler.post(flushTask);
+        } else if (!queue.isEmpty()) {
+            handler.postDelayed(flushTask, flushInterval);
+        }
+    }
+
+    private void sync() {
+        MeasurementStore written = store;
+        if (written != null) {
+            long start = System.nanoTime();
+            written.sync();
+            Metrics.recordSince(Metrics.DB_SYNC, start);
+        }
+    }
+
+    private synchronized void apply(CaptureConfig config) {
+        Log.i(LOG_TAG, "apply config");
+        flushBatchSize = config.flushBatchSize;
+        flushInterval = config.flushInterval;
+
+        // apply a smaller batch size right away
+        if (retryDelay == 0 && queue.size() >= flushBatchSize) {
+            handler.removeCallbacks(flushTask);
+            handler.post(flushTask);
+        }
+    }
+}
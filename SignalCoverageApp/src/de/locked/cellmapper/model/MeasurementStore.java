@@ -0,0 +1,83 @@
+package de.locked.cellmapper.model;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistence of the measurements. The capture path writes through {@link MeasurementBuffer}, the UI and the
+ * exporters read through this interface, so they don't depend on the storage engine.
+ * <p/>
+ * All times are db times in milliseconds.
+ *
+ * @see MeasurementStores
+ */
+public interface MeasurementStore {
+
+    /**
+     * Writes all given measurements in one go.
+     *
+     * @param measurements the rows to write
+     * @return the number of leading rows that were handled, i.e. written or dropped as invalid. The rows after them
+     * were not written because of an error and can be retried.
+     */
+    int saveAll(List<Measurement> measurements);
+
+    /**
+     * @return true if so much was written since the last {@link #sync()} that it should be synced even during
+     * capture
+     */
+    boolean needsSync();
+
+    /**
+     * Makes the written data durable. Called by the writer when no data has been captured for a while.
+     */
+    void sync();
+
+    int getRows();
+
+    /**
+     * @param from db time (ms), inclusive
+     * @return number of rows with a time of at least from
+     */
+    int getRows(long from);
+
+    /**
+     * @return carrier name -> number of rows, largest first
+     */
+    Map<String, Integer> getRowsPerCarrier();
+
+    /**
+     * @return the time of the newest row or -1 if there is no data
+     */
+    long getLastTime();
+
+    String getLastEntryString();
+
+    String getLastRowAsString();
+
+    /**
+     * Reads the rows in the given area and time range page by page while the cursor advances.
+     *
+     * @param bbox the area of interest or null for everywhere
+     * @param from db time (ms), inclusive, not negative
+     * @param to   db time (ms), exclusive
+     * @return the rows ordered by time with the columns of the {@link DbHandler#VIEW}
+     */
+    StreamingCursor stream(BoundingBox bbox, long from, long to);
+
+    /**
+     * @param destination the export destination
+     * @return the time of the last row that was successfully exported to the destination or -1 if there is none
+     */
+    long getWatermark(String destination);
+
+    /**
+     * Remember that all rows up to the given time have been exported to the destination.
+     */
+    void setWatermark(String destination, long time);
+
+    /**
+     * Release all resources. The store opens them again when it is used afterwards.
+     */
+    void close();
+}
@@ -0,0 +1,25 @@
+package de.locked.cellmapper.model;
+
+import android.content.Context;
+
+/**
+ * Selects the storage engine configured in the preferences.
+ */
+public class MeasurementStores {
+    public static final String SQLITE = "sqlite";
+    public static final String LOG = "log";
+
+    private MeasurementStores() {
+    }
+
+    /**
+     * @return the store of the configured engine. Data is not migrated when the engine is changed.
+     */
+    public static MeasurementStore get(Context context) {
+        String engine = Preferences.getString(context, Preferences.storage_engine, SQLITE);
+        if (LOG.equals(engine)) {
+            return LogStore.get(context);
+        }
+        return DbHandler.get(context);
+    }
+}
@@ -0,0 +1,153 @@
+package de.locked.cellmapper.model;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of the capture pipeline since the start of the process. Recording doesn't
+ * allocate and doesn't lock, so it can be done on every fix.
+ * <p/>
+ * Histograms have power of two buckets in microseconds: bucket 0 counts 0 us, bucket i counts [2^(i-1), 2^i).
+ * Percentiles are reported as the upper bound of their bucket.
+ */
+public class Metrics {
+    // counters
+    public static final int FIXES = 0;
+    public static final int REJECTED_NULL = 1;
+    public static final int REJECTED_AIRPLANE_MODE = 2;
+    public static final int REJECTED_STALE = 3;
+    public static final int REJECTED_TIME = 4;
+    public static final int REJECTED_DISTANCE = 5;
+    public static final int REJECTED_SAMPLING = 6;
+    public static final int REJECTED_NO_SIGNAL = 7;
+    public static final int SIGNAL_UPDATES = 8;
+    public static final int ROWS_WRITTEN = 9;
+    public static final int ROWS_EXPORTED = 10;
+    public static final int EXPORT_TIME = 11; // ms
+    public static final int ROWS_UPLOADED = 12;
+    public static final int UPLOAD_TIME = 13; // ms
+    public static final int CYCLES = 14;
+    public static final int POLLS = 15;
+    public static final int TRIGGERS = 16;
+    public static final int THREADS_STARTED = 17;
+    public static final int REJECTED_DUPLICATE = 18;
+    public static final int TRIGGERS_SUPPRESSED = 19;
+    // a single update was still outstanding
+    public static final int POLLS_SKIPPED = 20;
+    // invalid rows and rows beyond the queue bound of the measurement buffer
+    public static final int ROWS_DROPPED = 21;
+    private static final String[] COUNTERS = {"fixes", "rejected null", "rejected airplane mode", "rejected stale",
+            "rejected time", "rejected distance", "rejected sampling", "rejected no signal", "signal updates",
+            "rows written", "rows exported", "export time ms", "rows uploaded", "upload time ms", "duty cycles",
+            "polls", "triggered polls", "threads started", "rejected duplicate",
+            "suppressed triggers", "skipped polls", "rows dropped"};
+    // histograms
+    public static final int DB_WRITE = 0;
+    public static final int DB_SYNC = 1;
+    public static final int UPLOAD_REQUEST = 2;
+    // delay of scheduled duty cycle events
+    public static final int CYCLE_JITTER = 3;
+    private static final String[] HISTOGRAMS = {"db write", "db sync", "upload request", "cycle jitter"};
+    private static final int BUCKETS = 25; // up to 2^24 us = 16.7 s
+
+    private static final AtomicLongArray counters = new AtomicLongArray(COUNTERS.length);
+    private static final AtomicLongArray buckets = new AtomicLongArray(HISTOGRAMS.length * BUCKETS);
+    private static final AtomicLongArray sums = new AtomicLongArray(HISTOGRAMS.length);
+    private static final AtomicLongArray maxima = new AtomicLongArray(HISTOGRAMS.length);
+
+    private Metrics() {
+    }
+
+    public static void inc(int counter) {
+        counters.incrementAndGet(counter);
+    }
+
+    public static void add(int counter, long delta) {
+        counters.addAndGet(counter, delta);
+    }
+
+    public static long get(int counter) {
+        return counters.get(counter);
+    }
+
+    /**
+     * @param start start of the measured operation, see {@link System#nanoTime()}
+     */
+    public static void recordSince(int histogram, long start) {
+        record(histogram, (System.nanoTime() - start) / 1000);
+    }
+
+    public static void record(int histogram, long micros) {
+        micros = Math.max(0, micros);
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(histogram * BUCKETS + bucket);
+        sums.addAndGet(histogram, micros);
+        long max;
+        do {
+            max = maxima.get(histogram);
+        } while (micros > max && !maxima.compareAndSet(histogram, max, micros));
+    }
+
+    /**
+     * @return a few lines for the status display
+     */
+    public static String summary() {
+        long fixes = get(FIXES);
+        long rejected = 0;
+        for (int counter = REJECTED_NULL; counter <= REJECTED_NO_SIGNAL; counter++) {
+            rejected += get(counter);
+        }
+        rejected += get(REJECTED_DUPLICATE);
+        return "Fixes: " + fixes + " (rejected " + rejected + "), signal updates: " + get(SIGNAL_UPDATES) + "\n"
+                + "DB write: " + histogram(DB_WRITE);
+    }
+
+    /**
+     * Write all counters and histograms, e.g. from {@link android.app.Service#dump}.
+     */
+    public static void dump(PrintWriter writer) {
+        for (int counter = 0; counter < COUNTERS.length; counter++) {
+            writer.println(COUNTERS[counter] + ": " + get(counter));
+        }
+        writer.println("export throughput: " + perSecond(get(ROWS_EXPORTED), get(EXPORT_TIME)) + " rows/s");
+        writer.println("upload throughput: " + perSecond(get(ROWS_UPLOADED), get(UPLOAD_TIME)) + " rows/s");
+        for (int histogram = 0; histogram < HISTOGRAMS.length; histogram++) {
+            writer.println(HISTOGRAMS[histogram] + ": " + histogram(histogram));
+        }
+    }
+
+    private static String perSecond(long rows, long millis) {
+        return millis == 0 ? "-" : String.format(Locale.US, "%.1f", rows * 1000.0 / millis);
+    }
+
+    private static String histogram(int histogram) {
+        long[] counts = new long[BUCKETS];
+        long n = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            counts[bucket] = buckets.get(histogram * BUCKETS + bucket);
+            n += counts[bucket];
+        }
+        if (n == 0) {
+            return "n=0";
+        }
+        return String.format(Locale.US, "n=%d mean=%.1fms p50<%.1fms p95<%.1fms p99<%.1fms max=%.1fms", n,
+                sums.get(histogram) / 1000.0 / n, percentile(counts, n, 0.5), percentile(counts, n, 0.95),
+                percentile(counts, n, 0.99), maxima.get(histogram) / 1000.0);
+    }
+
+    /**
+     * @return the upper bound of the bucket of the percentile in ms
+     */
+    private static double percentile(long[] counts, long n, double p) {
+        long rank = (long) Math.ceil(p * n);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += counts[bucket];
+            if (seen >= rank) {
+                return (1L << bucket) / 1000.0;
+            }
+        }
+        return (1L << (BUCKETS - 1)) / 1000.0;
+    }
+}
@@ -21,7 +21,7 @@ public class MobileStatusUtils {
     }
 
     public static boolean fakeLocationEnabled(Context context){
-        return Settings.Secure.getString(context.getContentResolver(), Settings.Secure.ALLOW_MOCK_LOCATION).equals("1");
+        return "1".equals(Settings.Secure.getString(context.getContentResolver(), Settings.Secure.ALLOW_MOCK_LOCATION));
     }
 
     /**
@@ -0,0 +1,506 @@
+package de.locked.cellmapper.model;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Monthly partitions of the measurement data.
+ * <p/>
+ * The Base table of the main database is the hot partition that receives all new data. Once a month is over,
+ * its rows are moved into an archive database of its own (CellMapper-yyyymm) which contains a copy of the
+ * dictionaries, so that it can be read on its own. Archives are compacted and only opened read only afterwards.
+ * The Archive table of the main database lists all archives together with their row count and time range.
+ */
+class Partitions {
+    private static final String LOG_TAG = Partitions.class.getName();
+    static final String TABLE = "Archive";
+    // rows copied per query while sealing
+    private static final int COPY_BATCH = 500;
+    private static final long SEAL_DELAY = 3600 * 1000; // ms
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    private final Context context;
+    // name of the main database, the archives are named after it
+    private final String name;
+    private final HashMap<Integer, SQLiteDatabase> archives = new HashMap<Integer, SQLiteDatabase>();
+
+    Partitions(Context context, String name) {
+        this.context = context;
+        this.name = name;
+    }
+
+    static void createTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE + "(" + //
+                " month INTEGER PRIMARY KEY, " + //
+                " file TEXT NOT NULL, " + //
+                " rows INT, " + //
+                " minTime INT, " + //
+                " maxTime INT " + //
+                " );");
+    }
+
+    /**
+     * @param time db time (ms)
+     * @return the month (yyyymm, UTC) the time belongs to
+     */
+    static int monthOf(long time) {
+        Calendar c = Calendar.getInstance(UTC);
+        c.setTimeInMillis(time);
+        return c.get(Calendar.YEAR) * 100 + c.get(Calendar.MONTH) + 1;
+    }
+
+    /**
+     * @return the db time (ms) of the first millisecond of the month
+     */
+    static long startOf(int month) {
+        Calendar c = Calendar.getInstance(UTC);
+        c.clear();
+        c.set(month / 100, month % 100 - 1, 1);
+        return c.getTimeInMillis();
+    }
+
+    /**
+     * @return the db time (ms) of the first millisecond after the month
+     */
+    static long endOf(int month) {
+        Calendar c = Calendar.getInstance(UTC);
+        c.clear();
+        c.set(month / 100, month % 100 - 1, 1);
+        c.add(Calendar.MONTH, 1);
+        return c.getTimeInMillis();
+    }
+
+    /**
+     * Fixes are accepted up to an hour late. So a month is only closed an hour after its end. Thus the archives
+     * are complete and all archived rows are older than the rows of the hot partition.
+     *
+     * @return the month that is currently written to
+     */
+    static int currentMonth() {
+        return monthOf(System.currentTimeMillis() - SEAL_DELAY);
+    }
+
+    private File fileFor(int month) {
+        return context.getDatabasePath(name + "-" + month);
+    }
+
+    /**
+     * @param main the main database holding the list of archives
+     * @return the (read only) archives that overlap [from, to) in chronological order
+     */
+    List<SQLiteDatabase> archives(SQLiteDatabase main, long from, long to) {
+        List<SQLiteDatabase> result = new ArrayList<SQLiteDatabase>();
+        Cursor list = main.rawQuery("SELECT month FROM " + TABLE + //
+                " WHERE maxTime >= ? AND minTime < ? ORDER BY month ASC", //
+                new String[]{Long.toString(from), Long.toString(to)});
+        try {
+            while (list.moveToNext()) {
+                SQLiteDatabase archive = open(list.getInt(0));
+                if (archive != null) {
+                    result.add(archive);
+                }
+            }
+        } finally {
+            list.close();
+        }
+        return result;
+    }
+
+    /**
+     * @return a cursor on the newest row of the newest archive or null if there is no archive
+     */
+    Cursor queryLast(SQLiteDatabase main) {
+        Cursor list = main.rawQuery("SELECT month FROM " + TABLE + " ORDER BY month DESC LIMIT 1", null);
+        try {
+            if (!list.moveToFirst()) {
+                return null;
+            }
+            SQLiteDatabase archive = open(list.getInt(0));
+            if (archive == null) {
+                return null;
+            }
+            return archive.rawQuery("SELECT * FROM " + DbHandler.VIEW + " ORDER BY time DESC, slot DESC LIMIT 1", null);
+        } finally {
+            list.close();
+        }
+    }
+
+    /**
+     * @return number of rows in all archives
+     */
+    int countRows(SQLiteDatabase main) {
+        Cursor cursor = main.rawQuery("SELECT IFNULL(SUM(rows), 0) FROM " + TABLE, null);
+        int count = 0;
+        if (cursor.moveToFirst()) {
+            count = cursor.getInt(0);
+        }
+        cursor.close();
+        return count;
+    }
+
+    /**
+     * @return number of archived rows with a time of at least from
+     */
+    int countRows(SQLiteDatabase main, long from) {
+        Cursor list = main.rawQuery("SELECT month, rows, minTime FROM " + TABLE + " WHERE maxTime >= ?",
+                new String[]{Long.toString(from)});
+        int count = 0;
+        try {
+            while (list.moveToNext()) {
+                if (list.getLong(2) >= from) {
+                    count += list.getInt(1);
+                    continue;
+                }
+                // only part of the archive is requested
+                SQLiteDatabase archive = open(list.getInt(0));
+                if (archive != null) {
+                    Cursor cursor = archive.rawQuery("SELECT COUNT(*) FROM " + DbHandler.TABLE + " WHERE time >= ?",
+                            new String[]{Long.toString(from)});
+                    if (cursor.moveToFirst()) {
+                        count += cursor.getInt(0);
+                    }
+                    cursor.close();
+                }
+            }
+        } finally {
+            list.close();
+        }
+        return count;
+    }
+
+    synchronized SQLiteDatabase open(int month) {
+        SQLiteDatabase archive = archives.get(month);
+        if (archive == null || !archive.isOpen()) {
+            File file = fileFor(month);
+            if (!file.exists()) {
+                Log.w(LOG_TAG, "archive " + file + " is listed but missing");
+                return null;
+            }
+            archive = SQLiteDatabase.openDatabase(file.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+            archives.put(month, archive);
+        }
+        return archive;
+    }
+
+    private synchronized void closeArchive(int month) {
+        SQLiteDatabase archive = archives.remove(month);
+        if (archive != null) {
+            archive.close();
+        }
+    }
+
+    /**
+     * Remove the archive, its entry in the list of archives and its rows from the statistics.
+     */
+    void drop(DbHandler handler, int month) {
+        SQLiteDatabase archive = open(month);
+        synchronized (handler) {
+            SQLiteDatabase main = handler.getWritableDatabase();
+            main.beginTransaction();
+            try {
+                if (archive != null) {
+                    Cursor cursor = archive.rawQuery("SELECT carrierId, COUNT(*) FROM " + DbHandler.TABLE //
+                            + " GROUP BY carrierId", null);
+                    try {
+                        while (cursor.moveToNext()) {
+                            Statistics.addArchived(main, cursor.getLong(0), -cursor.getInt(1));
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                }
+                main.delete(TABLE, "month = ?", new String[]{Integer.toString(month)});
+                main.setTransactionSuccessful();
+            } finally {
+                main.endTransaction();
+            }
+        }
+        closeArchive(month);
+        File file = fileFor(month);
+        new File(file.getPath() + "-journal").delete();
+        if (file.exists() && !file.delete()) {
+            Log.w(LOG_TAG, "could not delete " + file);
+        }
+        Log.i(LOG_TAG, "dropped archive " + month);
+    }
+
+    /**
+     * Add the column to the Base table of all archives and update their views.
+     */
+    void addColumn(SQLiteDatabase main, String column, String type) {
+        Cursor list = main.rawQuery("SELECT month FROM " + TABLE, null);
+        try {
+            while (list.moveToNext()) {
+                int month = list.getInt(0);
+                File file = fileFor(month);
+                if (!file.exists()) {
+                    continue;
+                }
+                closeArchive(month);
+                SQLiteDatabase archive = SQLiteDatabase.openDatabase(file.getPath(), null,
+                        SQLiteDatabase.OPEN_READWRITE);
+                try {
+                    if (!DbHandler.hasColumn(archive, DbHandler.TABLE, column)) {
+                        archive.execSQL("ALTER TABLE " + DbHandler.TABLE + " ADD COLUMN " + column + " " + type);
+                    }
+                    DbHandler.createView(archive);
+                } finally {
+                    archive.close();
+                }
+            }
+        } finally {
+            list.close();
+        }
+    }
+
+    /**
+     * Add the spatial index to all archives.
+     */
+    void addSpatialIndex(SQLiteDatabase main) {
+        Cursor list = main.rawQuery("SELECT month FROM " + TABLE, null);
+        try {
+            while (list.moveToNext()) {
+                int month = list.getInt(0);
+                File file = fileFor(month);
+                if (!file.exists()) {
+                    continue;
+                }
+                closeArchive(month);
+                SQLiteDatabase archive = SQLiteDatabase.openDatabase(file.getPath(), null,
+                        SQLiteDatabase.OPEN_READWRITE);
+                try {
+                    SpatialIndex.addTo(archive, DbHandler.TABLE);
+                } finally {
+                    archive.close();
+                }
+            }
+        } finally {
+            list.close();
+        }
+    }
+
+    /**
+     * Convert the times of all archives and of the list of archives from seconds to milliseconds.
+     */
+    void timeToMilliseconds(SQLiteDatabase main) {
+        Cursor list = main.rawQuery("SELECT month FROM " + TABLE, null);
+        try {
+            while (list.moveToNext()) {
+                int month = list.getInt(0);
+                File file = fileFor(month);
+                if (!file.exists()) {
+                    continue;
+                }
+                closeArchive(month);
+                SQLiteDatabase archive = SQLiteDatabase.openDatabase(file.getPath(), null,
+                        SQLiteDatabase.OPEN_READWRITE);
+                try {
+                    archive.execSQL("UPDATE " + DbHandler.TABLE + " SET time = time * 1000");
+                } finally {
+                    archive.close();
+                }
+            }
+        } finally {
+            list.close();
+        }
+        main.execSQL("UPDATE " + TABLE + " SET minTime = minTime * 1000, maxTime = maxTime * 1000");
+    }
+
+    /**
+     * Book the rows of all archives in the carrier statistics.
+     */
+    void addArchivedRowsToStatistics(SQLiteDatabase main) {
+        Cursor list = main.rawQuery("SELECT month FROM " + TABLE, null);
+        try {
+            while (list.moveToNext()) {
+                SQLiteDatabase archive = open(list.getInt(0));
+                if (archive == null) {
+                    continue;
+                }
+                Cursor cursor = archive.rawQuery("SELECT carrierId, COUNT(*) FROM " + DbHandler.TABLE //
+                        + " GROUP BY carrierId", null);
+                try {
+                    while (cursor.moveToNext()) {
+                        Statistics.addArchived(main, cursor.getLong(0), cursor.getInt(1));
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+        } finally {
+            list.close();
+        }
+    }
+
+    synchronized void close() {
+        for (SQLiteDatabase archive : archives.values()) {
+            archive.close();
+        }
+        archives.clear();
+    }
+
+    /**
+     * Move all rows of months before the current one from the hot partition into their archives.
+     *
+     * @param handler the db handler whose hot partition is sealed
+     * @return the number of sealed months
+     */
+    int sealClosedPartitions(DbHandler handler) {
+        int current = currentMonth();
+        int sealed = 0;
+        while (true) {
+            SQLiteDatabase main = handler.getReader();
+            Cursor cursor = main.rawQuery("SELECT MIN(time) FROM " + DbHandler.TABLE, null);
+            long min = 0;
+            boolean empty = true;
+            if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                min = cursor.getLong(0);
+                empty = false;
+            }
+            cursor.close();
+
+            if (empty || monthOf(min) >= current) {
+                return sealed;
+            }
+            seal(handler, monthOf(min));
+            sealed++;
+        }
+    }
+
+    /**
+     * Copies the rows of the month into the archive and removes them from the hot partition afterwards.
+     * Rows are replaced in the archive, so sealing a month again (e.g. late rows or after a crash between the two
+     * steps) is safe. The copy runs without the handler lock, so only the copied rows are removed, and only if no
+     * row was added between them meanwhile. Rows of the month written meanwhile are archived by the next seal.
+     */
+    private void seal(DbHandler handler, int month) {
+        long from = startOf(month);
+        long to = endOf(month);
+        File file = fileFor(month);
+        Log.i(LOG_TAG, "sealing partition " + month + " into " + file);
+
+        SQLiteDatabase main = handler.getReader();
+        int rows;
+        long minTime;
+        long maxTime;
+        // time of the last copied row, rows written after the copy stay in the hot partition
+        long last = from - 1;
+        long copiedRows = 0;
+
+        closeArchive(month);
+        SQLiteDatabase archive = SQLiteDatabase.openOrCreateDatabase(file, null);
+        try {
+            archive.beginTransaction();
+            try {
+                DbHandler.createDictionaries(archive);
+                DbHandler.createBase(archive, DbHandler.TABLE);
+                DbHandler.createView(archive);
+
+                copy(main.rawQuery("SELECT * FROM " + DbHandler.CARRIER_TABLE, null), archive, DbHandler.CARRIER_TABLE);
+                copy(main.rawQuery("SELECT * FROM " + DbHandler.DEVICE_TABLE, null), archive, DbHandler.DEVICE_TABLE);
+
+                int copied;
+                do {
+                    // whole fixes, so the batch ends with all rows of its last time
+                    String[] range = {Long.toString(last), Long.toString(to)};
+                    Cursor cursor = main.rawQuery("SELECT * FROM " + DbHandler.TABLE + //
+                            " WHERE time > ? AND time <= (SELECT MAX(time) FROM (SELECT time FROM " + //
+                            DbHandler.TABLE + " WHERE time > ? AND time < ? ORDER BY time ASC LIMIT " + //
+                            COPY_BATCH + ")) ORDER BY time ASC", //
+                            new String[]{range[0], range[0], range[1]});
+                    int time = cursor.getColumnIndexOrThrow("time");
+                    if (cursor.moveToLast()) {
+                        last = cursor.getLong(time);
+                    }
+                    cursor.moveToPosition(-1);
+                    copied = copy(cursor, archive, DbHandler.TABLE);
+                    copiedRows += copied;
+                } while (copied >= COPY_BATCH);
+                archive.setTransactionSuccessful();
+            } finally {
+                archive.endTransaction();
+            }
+
+            Cursor stats = archive.rawQuery("SELECT COUNT(*), MIN(time), MAX(time) FROM " + DbHandler.TABLE, null);
+            stats.moveToFirst();
+            rows = stats.getInt(0);
+            minTime = stats.getLong(1);
+            maxTime = stats.getLong(2);
+            stats.close();
+
+            archive.execSQL("VACUUM");
+        } finally {
+            archive.close();
+        }
+
+        // the archive is complete, now drop the rows from the hot partition
+        synchronized (handler) {
+            main = handler.getWritableDatabase();
+            if (count(main, from, last) != copiedRows) {
+                // an older row was written during the copy, seal again
+                Log.i(LOG_TAG, "partition " + month + " changed while sealing");
+                return;
+            }
+            main.beginTransaction();
+            try {
+                ContentValues values = new ContentValues();
+                values.put("month", month);
+                values.put("file", file.getName());
+                values.put("rows", rows);
+                values.put("minTime", minTime);
+                values.put("maxTime", maxTime);
+                main.insertWithOnConflict(TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+                Statistics.archive(main, from, last + 1);
+                main.delete(DbHandler.TABLE, "time >= ? AND time <= ?",
+                        new String[]{Long.toString(from), Long.toString(last)});
+                main.setTransactionSuccessful();
+            } finally {
+                main.endTransaction();
+            }
+        }
+        Log.i(LOG_TAG, "sealed partition " + month + " with " + rows + " rows");
+    }
+
+    /**
+     * @return number of rows of the hot partition in [from, last]
+     */
+    private static long count(SQLiteDatabase db, long from, long last) {
+        return DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + DbHandler.TABLE + //
+                " WHERE time >= ? AND time <= ?", new String[]{Long.toString(from), Long.toString(last)});
+    }
+
+    /**
+     * Insert all rows of the cursor into the table and close the cursor.
+     *
+     * @return number of copied rows
+     */
+    private int copy(Cursor cursor, SQLiteDatabase dest, String table) {
+        int n = 0;
+        try {
+            ContentValues values = new ContentValues();
+            while (cursor.moveToNext()) {
+                values.clear();
+                DatabaseUtils.cursorRowToContentValues(cursor, values);
+                if (dest.insertWithOnConflict(table, null, values, SQLiteDatabase.CONFLICT_REPLACE) < 0) {
+                    throw new SQLException("could not copy row into " + table);
+                }
+                n++;
+            }
+        } finally {
+            cursor.close();
+        }
+        return n;
+    }
+}
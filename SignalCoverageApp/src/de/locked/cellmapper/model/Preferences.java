@@ -5,6 +5,8 @@ import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
+import java.util.Map;
+
 // enum!!!
 public class Preferences {
     public static final String LOG_TAG = Preferences.class.getName();
@@ -18,34 +20,53 @@ public class Preferences {
     public static String password = "password";
     public static String licenseAgreed = "licenseAgreed";
     public static String updateOnSignalChange = "updateOnSignalChange";
+    public static String trigger_threshold = "trigger_threshold";
+    public static String flush_batch_size = "flush_batch_size";
+    public static String flush_interval = "flush_interval";
+    public static String high_rate = "high_rate";
+    public static String storage_engine = "storage_engine";
+    public static String retention_age = "retention_age";
+    public static String signal_matching = "signal_matching";
+    public static String adaptive_sampling = "adaptive_sampling";
+    public static String adaptive_max_time = "adaptive_max_time";
+    public static String compress_stationary = "compress_stationary";
+    public static String battery_budget = "battery_budget";
+    // last mode of the capture service, not shown in the settings
+    public static String capture_mode = "capture_mode";
 
     public static String getString(Context c, String key, String def){
         SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(c);
         return preferences.getString(key, def);
     }
 
-    public static long getAsLong(SharedPreferences preferences, String key, long def) {
-        try {
-            long value = preferences.getLong(key, def);
-            return value;
-        } catch (ClassCastException e) {
-            Log.d(LOG_TAG, "no long value found for key: " + key);
+    /**
+     * @param values all preferences, see {@link SharedPreferences#getAll()}
+     * @return the value as long, ListPreferences store their values as strings
+     */
+    public static long getAsLong(Map<String, ?> values, String key, long def) {
+        Object value = values.get(key);
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
         }
-
-        String valueString = null;
-        try {
-            valueString = preferences.getString(key, Long.toString(def));
-            long value = Long.parseLong(valueString);
-            return value;
-        } catch (Exception e) {
-            Log.d(LOG_TAG, "value '" + valueString + "' could not be parsed to long: " + key);
+        if (value instanceof String) {
+            try {
+                return Long.parseLong(((String) value).trim());
+            } catch (NumberFormatException e) {
+                Log.d(LOG_TAG, "value '" + value + "' could not be parsed to long: " + key);
+            }
+        } else if (value == null && !values.containsKey(key)) {
+            Log.d(LOG_TAG, "preference " + key + " not set, use " + def);
         }
+        return def;
+    }
 
-        if (!preferences.getAll().containsKey(key)) {
-            Log.i(LOG_TAG, "preference " + key + " was requested but not contained in the preferences! "
-                    + "Are you sure that you chose the correct key?");
-        }
+    public static boolean getAsBoolean(Map<String, ?> values, String key, boolean def) {
+        Object value = values.get(key);
+        return value instanceof Boolean ? (Boolean) value : def;
+    }
 
-        return def;
+    public static String getAsString(Map<String, ?> values, String key, String def) {
+        Object value = values.get(key);
+        return value instanceof String ? (String) value : def;
     }
 }
@@ -0,0 +1,261 @@
+package de.locked.cellmapper.model;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Retention policy: raw rows older than the configured age are downsampled into cells of CELL_SIZE x CELL_SIZE
+ * meters and one hour per carrier, which keep min, max, sum and count of the signal strength. The raw rows are
+ * deleted afterwards.
+ * <p/>
+ * The job runs in batches of BATCH rows, each in a short transaction of its own, and pauses between batches so
+ * that the writer is never blocked for long. Aggregating a batch and deleting (hot partition) or marking
+ * (archives) its rows happens in the same transaction, so the job can be interrupted at any time. Archives are
+ * only processed when all their rows are old enough, they are dropped when done.
+ */
+class Retention {
+    private static final String LOG_TAG = Retention.class.getName();
+    static final String TABLE = "Aggregate";
+    /**
+     * Aggregate with carrier names, cell centers and mean signal strength.
+     */
+    static final String VIEW = "AggregateData";
+    private static final double CELL_SIZE = 50; // m
+    private static final double METERS_PER_DEGREE = 111320;
+    private static final long HOUR = 3600 * 1000; // ms
+    private static final int BATCH = 500;
+    private static final long PAUSE = 100; // ms
+    // GSM signal strength 'unknown'
+    private static final int UNKNOWN_SIGNAL = 99;
+
+    private Retention() {
+    }
+
+    static void createTables(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE + "(" + //
+                " hour INT NOT NULL, " + //
+                " cellY INT NOT NULL, " + //
+                " cellX INT NOT NULL, " + //
+                " carrierId INT NOT NULL, " + //
+                " latitude REAL, " + //
+                " longitude REAL, " + //
+                " minSignal INT, " + //
+                " maxSignal INT, " + //
+                " sumSignal INT, " + //
+                " count INT, " + //
+                " PRIMARY KEY (hour, cellY, cellX, carrierId) " + //
+                " );");
+        db.execSQL("DROP VIEW IF EXISTS " + VIEW);
+        db.execSQL("CREATE VIEW " + VIEW + " AS SELECT " + //
+                " a.hour AS time, a.latitude AS latitude, a.longitude AS longitude, c.name AS carrier, " + //
+                " a.minSignal AS minSignal, a.maxSignal AS maxSignal, " + //
+                " 1.0 * a.sumSignal / a.count AS meanSignal, a.count AS count " + //
+                " FROM " + TABLE + " a " + //
+                " LEFT JOIN " + DbHandler.CARRIER_TABLE + " c ON c.id = a.carrierId");
+        if (!DbHandler.hasColumn(db, Partitions.TABLE, "aggregated")) {
+            db.execSQL("ALTER TABLE " + Partitions.TABLE + " ADD COLUMN aggregated INT");
+        }
+    }
+
+    /**
+     * Downsample all rows older than the given age.
+     *
+     * @return number of downsampled rows
+     */
+    static int apply(DbHandler handler, Partitions partitions, long age) throws InterruptedException {
+        long cutoff = System.currentTimeMillis() - age;
+        int rows = 0;
+        int n;
+        do {
+            n = aggregateHot(handler, cutoff);
+            rows += n;
+            Thread.sleep(PAUSE);
+        } while (n > 0);
+
+        Cursor list = handler.getReader().rawQuery("SELECT month, aggregated FROM " + Partitions.TABLE + //
+                " WHERE maxTime < ? ORDER BY month ASC", new String[]{Long.toString(cutoff)});
+        try {
+            while (list.moveToNext()) {
+                rows += aggregateArchive(handler, partitions, list.getInt(0), list.isNull(1) ? -1 : list.getLong(1));
+            }
+        } finally {
+            list.close();
+        }
+        Log.i(LOG_TAG, "downsampled " + rows + " rows older than " + cutoff);
+        return rows;
+    }
+
+    /**
+     * Aggregate and delete the oldest batch of rows of the hot partition.
+     *
+     * @return number of rows
+     */
+    private static int aggregateHot(DbHandler handler, long cutoff) {
+        synchronized (handler) {
+            SQLiteDatabase main = handler.getWritableDatabase();
+            main.beginTransaction();
+            try {
+                // whole fixes, the rows of all slots of the last time are deleted with the batch
+                Cursor cursor = main.rawQuery("SELECT time, latitude, longitude, signalStrength, carrierId, " //
+                        + "IFNULL(samples, 1) FROM " + DbHandler.TABLE //
+                        + " WHERE time <= (SELECT MAX(time) FROM (SELECT time FROM " + DbHandler.TABLE //
+                        + " WHERE time < ? ORDER BY time ASC LIMIT " + BATCH + ")) ORDER BY time ASC", //
+                        new String[]{Long.toString(cutoff)});
+                long[] range;
+                try {
+                    range = aggregate(main, cursor);
+                } finally {
+                    cursor.close();
+                }
+                if (range == null) {
+                    return 0;
+                }
+                main.delete(DbHandler.TABLE, "time >= ? AND time <= ?",
+                        new String[]{Long.toString(range[0]), Long.toString(range[1])});
+                main.setTransactionSuccessful();
+                return (int) range[2];
+            } finally {
+                main.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Aggregate all rows of the archive after the given time batch wise and drop the archive afterwards.
+     *
+     * @return number of rows
+     */
+    private static int aggregateArchive(DbHandler handler, Partitions partitions, int month, long after)
+            throws InterruptedException {
+        SQLiteDatabase archive = partitions.open(month);
+        if (archive == null) {
+            return 0;
+        }
+        Log.i(LOG_TAG, "downsampling archive " + month);
+        int rows = 0;
+        while (true) {
+            // whole fixes, the next batch continues after the last time
+            Cursor cursor = archive.rawQuery("SELECT time, latitude, longitude, signalStrength, carrierId, " //
+                    + "IFNULL(samples, 1) FROM " + DbHandler.TABLE //
+                    + " WHERE time > ? AND time <= (SELECT MAX(time) FROM (SELECT time FROM " + DbHandler.TABLE //
+                    + " WHERE time > ? ORDER BY time ASC LIMIT " + BATCH + ")) ORDER BY time ASC", //
+                    new String[]{Long.toString(after), Long.toString(after)});
+            try {
+                synchronized (handler) {
+                    SQLiteDatabase main = handler.getWritableDatabase();
+                    main.beginTransaction();
+                    try {
+                        long[] range = aggregate(main, cursor);
+                        if (range == null) {
+                            break;
+                        }
+                        main.execSQL("UPDATE " + Partitions.TABLE + " SET aggregated = ? WHERE month = ?",
+                                new Object[]{range[1], month});
+                        main.setTransactionSuccessful();
+                        after = range[1];
+                        rows += range[2];
+                    } finally {
+                        main.endTransaction();
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            Thread.sleep(PAUSE);
+        }
+        partitions.drop(handler, month);
+        return rows;
+    }
+
+    /**
+     * Add the rows of the cursor to the aggregates.
+     *
+     * @return {first time, last time, rows} or null if the cursor is empty
+     */
+    private static long[] aggregate(SQLiteDatabase main, Cursor cursor) {
+        if (!cursor.moveToFirst()) {
+            return null;
+        }
+        long first = cursor.getLong(0);
+        long last = first;
+        // key -> {hour, cellY, cellX, carrierId, min, max, sum, count}
+        Map<String, long[]> cells = new HashMap<String, long[]>();
+        do {
+            last = cursor.getLong(0);
+            int signal = cursor.getInt(3);
+            if (signal == UNKNOWN_SIGNAL) {
+                continue;
+            }
+            long hour = last / HOUR * HOUR;
+            long cellY = cellY(cursor.getDouble(1));
+            long cellX = cellX(cellY, cursor.getDouble(2));
+            long carrierId = cursor.getLong(4);
+            // a stationary run counts with all its samples
+            long samples = cursor.getLong(5);
+            String key = hour + "/" + cellY + "/" + cellX + "/" + carrierId;
+            long[] cell = cells.get(key);
+            if (cell == null) {
+                cells.put(key, new long[]{hour, cellY, cellX, carrierId, signal, signal, signal * samples, samples});
+            } else {
+                cell[4] = Math.min(cell[4], signal);
+                cell[5] = Math.max(cell[5], signal);
+                cell[6] += signal * samples;
+                cell[7] += samples;
+            }
+        } while (cursor.moveToNext());
+
+        for (long[] cell : cells.values()) {
+            merge(main, cell);
+        }
+        return new long[]{first, last, cursor.getCount()};
+    }
+
+    private static void merge(SQLiteDatabase main, long[] cell) {
+        String[] key = {Long.toString(cell[0]), Long.toString(cell[1]), Long.toString(cell[2]),
+                Long.toString(cell[3])};
+        Cursor existing = main.rawQuery("SELECT 1 FROM " + TABLE + //
+                " WHERE hour = ? AND cellY = ? AND cellX = ? AND carrierId = ?", key);
+        boolean exists = existing.moveToFirst();
+        existing.close();
+        if (exists) {
+            main.execSQL("UPDATE " + TABLE + " SET minSignal = MIN(minSignal, ?), maxSignal = MAX(maxSignal, ?), " + //
+                    " sumSignal = sumSignal + ?, count = count + ? " + //
+                    " WHERE hour = ? AND cellY = ? AND cellX = ? AND carrierId = ?", //
+                    new Object[]{cell[4], cell[5], cell[6], cell[7], cell[0], cell[1], cell[2], cell[3]});
+        } else {
+            double latitude = centerLatitude(cell[1]);
+            main.execSQL("INSERT INTO " + TABLE + //
+                    " (hour, cellY, cellX, carrierId, latitude, longitude, minSignal, maxSignal, sumSignal, count)" + //
+                    " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)", //
+                    new Object[]{cell[0], cell[1], cell[2], cell[3], latitude, centerLongitude(latitude, cell[2]),
+                            cell[4], cell[5], cell[6], cell[7]});
+        }
+    }
+
+    // the cells are CELL_SIZE high everywhere, their width in degrees depends on the latitude of the cell row
+
+    private static long cellY(double latitude) {
+        return (long) Math.floor((latitude + 90) * METERS_PER_DEGREE / CELL_SIZE);
+    }
+
+    private static long cellX(long cellY, double longitude) {
+        return (long) Math.floor((longitude + 180) * metersPerDegreeLongitude(centerLatitude(cellY)) / CELL_SIZE);
+    }
+
+    private static double centerLatitude(long cellY) {
+        return (cellY + 0.5) * CELL_SIZE / METERS_PER_DEGREE - 90;
+    }
+
+    private static double centerLongitude(double latitude, long cellX) {
+        return (cellX + 0.5) * CELL_SIZE / metersPerDegreeLongitude(latitude) - 180;
+    }
+
+    private static double metersPerDegreeLongitude(double latitude) {
+        // avoid degenerated cells at the poles
+        return METERS_PER_DEGREE * Math.max(0.01, Math.cos(Math.toRadians(latitude)));
+    }
+}
@@ -0,0 +1,74 @@
+package de.locked.cellmapper.model;
+
+import android.location.GpsSatellite;
+import android.location.GpsStatus;
+
+/**
+ * Statistics of the satellites used in the last fix: their number, mean and max signal to noise ratio and the
+ * number of satellite systems (GPS, GLONASS, ...) they belong to.
+ */
+class SatelliteStats {
+    int inFix;
+    float meanSnr; // dB-Hz, 0 if no satellite is used
+    float maxSnr; // dB-Hz
+    int constellations;
+
+    SatelliteStats() {
+    }
+
+    SatelliteStats(SatelliteStats other) {
+        inFix = other.inFix;
+        meanSnr = other.meanSnr;
+        maxSnr = other.maxSnr;
+        constellations = other.constellations;
+    }
+
+    /**
+     * Replace the content by the statistics of the satellites in the status.
+     *
+     * @return the number of visible satellites
+     */
+    int read(GpsStatus status) {
+        int visible = 0;
+        int used = 0;
+        float sum = 0;
+        float max = 0;
+        int systems = 0;
+        for (GpsSatellite sat : status.getSatellites()) {
+            visible++;
+            if (sat.usedInFix()) {
+                used++;
+                float snr = sat.getSnr();
+                sum += snr;
+                max = Math.max(max, snr);
+                systems |= 1 << constellation(sat.getPrn());
+            }
+        }
+        inFix = used;
+        meanSnr = used == 0 ? 0 : sum / used;
+        maxSnr = max;
+        constellations = Integer.bitCount(systems);
+        return visible;
+    }
+
+    /**
+     * @return the satellite system by the PRN numbering of the platform: 0 GPS, 1 SBAS, 2 GLONASS, 3 QZSS,
+     * 4 BeiDou, 5 Galileo, 6 unknown
+     */
+    private static int constellation(int prn) {
+        if (prn >= 1 && prn <= 32) {
+            return 0;
+        } else if ((prn >= 33 && prn <= 64) || (prn >= 120 && prn <= 151)) {
+            return 1;
+        } else if (prn >= 65 && prn <= 96) {
+            return 2;
+        } else if (prn >= 193 && prn <= 200) {
+            return 3;
+        } else if (prn >= 201 && prn <= 235) {
+            return 4;
+        } else if (prn >= 301 && prn <= 336) {
+            return 5;
+        }
+        return 6;
+    }
+}
@@ -0,0 +1,170 @@
+package de.locked.cellmapper.model;
+
+/**
+ * Fixed capacity ring buffer of signal samples (receive time + signal vector) in primitive arrays. Adding a
+ * sample doesn't allocate; once the buffer is full the oldest sample is overwritten. Samples are ordered by time,
+ * so lookups by time are binary searches.
+ * <p/>
+ * Thread safe: samples are added by the telephony callbacks and read by the location callbacks.
+ */
+class SignalRingBuffer {
+    private final long[] times;
+    // presence masks of the signal vectors
+    private final int[] masks;
+    // SignalVector.FIELDS values per sample
+    private final short[] values;
+    // physical index of the oldest sample
+    private int start = 0;
+    private int size = 0;
+
+    SignalRingBuffer(int capacity) {
+        this.times = new long[capacity];
+        this.masks = new int[capacity];
+        this.values = new short[capacity * SignalVector.FIELDS];
+    }
+
+    synchronized void add(long time, SignalVector signal) {
+        if (size > 0 && time < times[physical(size - 1)]) {
+            // the clock was set back, the older samples can't be matched reliably anymore
+            clear();
+        }
+        int i;
+        if (size < times.length) {
+            i = physical(size);
+            size++;
+        } else {
+            i = start;
+            start = (start + 1) % times.length;
+        }
+        times[i] = time;
+        masks[i] = signal.mask;
+        System.arraycopy(signal.values, 0, values, i * SignalVector.FIELDS, SignalVector.FIELDS);
+    }
+
+    synchronized void clear() {
+        start = 0;
+        size = 0;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Result of a lookup, reused by the caller.
+     */
+    static class Match {
+        final SignalVector signal = new SignalVector();
+        // sample time - looked up time (ms), negative for samples before the time
+        long skew;
+    }
+
+    /**
+     * @return the time of the newest sample or -1 if the buffer is empty
+     */
+    synchronized long newestTime() {
+        return size == 0 ? -1 : times[physical(size - 1)];
+    }
+
+    /**
+     * Find the newest sample older than the given time.
+     *
+     * @return false if there is none
+     */
+    synchronized boolean findBefore(long time, Match match) {
+        int i = lastBefore(time);
+        if (i < 0) {
+            return false;
+        }
+        set(match, i, time);
+        return true;
+    }
+
+    /**
+     * Find the sample closest to the given time. If there is none within the tolerance, use the newest sample
+     * older than the time.
+     *
+     * @return false if there is no sample at all
+     */
+    synchronized boolean findNearest(long time, long tolerance, Match match) {
+        int before = lastBefore(time);
+        int after = before + 1 < size ? before + 1 : -1;
+        int nearest = before;
+        if (after >= 0 && (before < 0 || distance(after, time) < distance(before, time))) {
+            nearest = after;
+        }
+        if (nearest < 0) {
+            return false;
+        }
+        if (distance(nearest, time) > tolerance && before >= 0) {
+            nearest = before;
+        }
+        set(match, nearest, time);
+        return true;
+    }
+
+    /**
+     * Interpolate linearly between the samples right before and after the given time if both are within the
+     * tolerance, otherwise behave like {@link #findNearest(long, long, Match)}. Fields that are present in only
+     * one of the samples are taken from the nearer sample if it has them.
+     *
+     * @return false if there is no sample at all
+     */
+    synchronized boolean interpolate(long time, long tolerance, Match match) {
+        int before = lastBefore(time);
+        int after = before + 1;
+        if (before < 0 || after >= size || distance(before, time) > tolerance || distance(after, time) > tolerance
+                || times[physical(after)] == times[physical(before)]) {
+            return findNearest(time, tolerance, match);
+        }
+        boolean beforeIsNearer = distance(before, time) <= distance(after, time);
+        set(match, beforeIsNearer ? before : after, time);
+
+        int b = physical(before);
+        int a = physical(after);
+        double fraction = (double) (time - times[b]) / (times[a] - times[b]);
+        for (int field = 0; field < SignalVector.FIELDS; field++) {
+            int bit = 1 << field;
+            if ((masks[b] & bit) != 0 && (masks[a] & bit) != 0) {
+                int vb = values[b * SignalVector.FIELDS + field];
+                int va = values[a * SignalVector.FIELDS + field];
+                match.signal.set(field, (int) Math.round(vb + fraction * (va - vb)));
+            }
+        }
+        return true;
+    }
+
+    private void set(Match match, int logical, long time) {
+        int i = physical(logical);
+        match.signal.mask = masks[i];
+        System.arraycopy(values, i * SignalVector.FIELDS, match.signal.values, 0, SignalVector.FIELDS);
+        match.skew = times[i] - time;
+    }
+
+    private long distance(int logical, long time) {
+        return Math.abs(times[physical(logical)] - time);
+    }
+
+    /**
+     * @return the logical index (0 = oldest) of the newest sample older than the time or -1
+     */
+    private int lastBefore(long time) {
+        int lo = 0;
+        int hi = size - 1;
+        int result = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (times[physical(mid)] < time) {
+                result = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return result;
+    }
+
+    private int physical(int logical) {
+        return (start + logical) % times.length;
+    }
+}
@@ -0,0 +1,94 @@
+package de.locked.cellmapper.model;
+
+import android.telephony.SignalStrength;
+
+/**
+ * Decides which signal strength changes trigger a location poll. A change triggers if the level differs by at least
+ * the threshold from the level of the last trigger. Triggers within WINDOW after the last one are coalesced into
+ * one at the end of the window, which then uses the latest level.
+ * <p/>
+ * Only used on the capture thread, the threshold can be set from any thread. Times are uptime ms.
+ */
+public class SignalTrigger {
+    /**
+     * Returned by {@link #onSignal} for changes that don't trigger.
+     */
+    public static final long SUPPRESS = -1;
+    static final long WINDOW = 5000; // ms
+
+    private volatile int threshold = 0; // dB
+    // level of the last trigger
+    private int reference = SignalVector.NO_LEVEL;
+    private long lastTrigger = -WINDOW;
+    // a coalesced trigger is due at the end of the window
+    private boolean scheduled = false;
+    private int latest;
+
+    /**
+     * @param dB minimum level change, 0 to trigger on every change
+     */
+    public void setThreshold(int dB) {
+        threshold = Math.max(0, dB);
+    }
+
+    /**
+     * @return 0 to trigger now, the delay in ms after which {@link #fire} should be called, or SUPPRESS
+     */
+    public long onSignal(SignalStrength signal, long now) {
+        return onLevel(SignalVector.readLevel(signal), now);
+    }
+
+    long onLevel(int level, long now) {
+        if (level == SignalVector.NO_LEVEL) {
+            return SUPPRESS;
+        }
+        if (scheduled) {
+            // coalesced
+            latest = level;
+            return SUPPRESS;
+        }
+        if (reference != SignalVector.NO_LEVEL && Math.abs(level - reference) < threshold) {
+            return SUPPRESS;
+        }
+        if (now - lastTrigger >= WINDOW) {
+            trigger(level, now);
+            return 0;
+        }
+        scheduled = true;
+        latest = level;
+        return lastTrigger + WINDOW - now;
+    }
+
+    /**
+     * The coalesced trigger is due. It only triggers if the latest level still differs by the threshold, the level
+     * may have returned meanwhile.
+     *
+     * @return true to trigger now, false if the trigger is suppressed
+     */
+    public boolean fire(long now) {
+        if (!scheduled) {
+            return false;
+        }
+        scheduled = false;
+        if (reference != SignalVector.NO_LEVEL && Math.abs(latest - reference) < threshold) {
+            return false;
+        }
+        trigger(latest, now);
+        return true;
+    }
+
+    private void trigger(int level, long now) {
+        scheduled = false;
+        reference = level;
+        lastTrigger = now;
+    }
+
+    /**
+     * Forget the reference level and a scheduled trigger, e.g. at the end of a listen window.
+     */
+    public void reset() {
+        scheduled = false;
+        reference = SignalVector.NO_LEVEL;
+        lastTrigger = -WINDOW;
+    }
+}
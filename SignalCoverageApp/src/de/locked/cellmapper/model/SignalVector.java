@@ -0,0 +1,213 @@
+package de.locked.cellmapper.model;
+
+import android.telephony.SignalStrength;
+import android.util.Log;
+
+import java.lang.reflect.Method;
+
+/**
+ * The signal metrics of all radio access technologies of one signal sample. Only valid values are present, the
+ * presence of each field is kept in a bit mask.
+ * <p/>
+ * Encoded form (stored per row): the mask as short, followed by the present fields as shorts in field order.
+ * A GSM only sample takes 6 bytes, a sample with all fields 26 bytes.
+ */
+public class SignalVector {
+    private static final String LOG_TAG = SignalVector.class.getName();
+    /**
+     * The column of the encoded vectors.
+     */
+    public static final String COLUMN = "signals";
+
+    public static final int GSM_SIGNAL_STRENGTH = 0; // asu 0-31
+    public static final int GSM_BIT_ERROR_RATE = 1; // 0-7
+    public static final int CDMA_DBM = 2;
+    public static final int CDMA_ECIO = 3; // dB * 10
+    public static final int EVDO_DBM = 4;
+    public static final int EVDO_ECIO = 5; // dB * 10
+    public static final int EVDO_SNR = 6; // 0-8
+    public static final int LTE_SIGNAL_STRENGTH = 7; // asu 0-63
+    public static final int LTE_RSRP = 8; // dBm
+    public static final int LTE_RSRQ = 9; // dB
+    public static final int LTE_RSSNR = 10; // dB * 10
+    public static final int LTE_CQI = 11; // 0-15
+    public static final int FIELDS = 12;
+    static final int NO_LEVEL = Integer.MIN_VALUE;
+
+    static final String[] NAMES = {"gsmSignalStrength", "gsmBitErrorRate", "cdmaDbm", "cdmaEcio", "evdoDbm",
+            "evdoEcio", "evdoSnr", "lteSignalStrength", "lteRsrp", "lteRsrq", "lteRssnr", "lteCqi"};
+    // valid range of each field, inclusive
+    private static final int[] MIN = {0, 0, -150, -200, -150, -200, 0, 0, -140, -20, -200, 0};
+    private static final int[] MAX = {31, 7, -2, 0, -2, 0, 8, 63, -43, -3, 300, 15};
+
+    // the LTE getters are hidden API
+    private static final Method[] LTE_GETTERS = new Method[FIELDS];
+
+    static {
+        String[] lte = {"getLteSignalStrength", "getLteRsrp", "getLteRsrq", "getLteRssnr", "getLteCqi"};
+        for (int i = 0; i < lte.length; i++) {
+            try {
+                LTE_GETTERS[LTE_SIGNAL_STRENGTH + i] = SignalStrength.class.getMethod(lte[i]);
+            } catch (NoSuchMethodException e) {
+                Log.d(LOG_TAG, lte[i] + " not available");
+            }
+        }
+    }
+
+    int mask = 0;
+    final short[] values = new short[FIELDS];
+
+    /**
+     * Replace the content by the values of the signal strength.
+     */
+    void read(SignalStrength signal) {
+        mask = 0;
+        set(GSM_SIGNAL_STRENGTH, signal.getGsmSignalStrength());
+        set(GSM_BIT_ERROR_RATE, signal.getGsmBitErrorRate());
+        set(CDMA_DBM, signal.getCdmaDbm());
+        set(CDMA_ECIO, signal.getCdmaEcio());
+        set(EVDO_DBM, signal.getEvdoDbm());
+        set(EVDO_ECIO, signal.getEvdoEcio());
+        set(EVDO_SNR, signal.getEvdoSnr());
+        for (int field = LTE_SIGNAL_STRENGTH; field <= LTE_CQI; field++) {
+            if (LTE_GETTERS[field] != null) {
+                try {
+                    set(field, (Integer) LTE_GETTERS[field].invoke(signal));
+                } catch (Exception e) {
+                    Log.d(LOG_TAG, "can't read " + NAMES[field] + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * The level of {@link #getLevel()} without reading all fields. Only invokes the hidden LTE getter if there is no
+     * GSM signal, so it's cheap enough to be called on every signal update in addition to {@link #read}.
+     *
+     * @return the signal level in dBm, NO_LEVEL if there is none
+     */
+    static int readLevel(SignalStrength signal) {
+        int gsm = signal.getGsmSignalStrength();
+        if (valid(GSM_SIGNAL_STRENGTH, gsm)) {
+            return 2 * gsm - 113;
+        }
+        if (LTE_GETTERS[LTE_RSRP] != null) {
+            try {
+                int rsrp = (Integer) LTE_GETTERS[LTE_RSRP].invoke(signal);
+                if (valid(LTE_RSRP, rsrp)) {
+                    return rsrp;
+                }
+            } catch (Exception e) {
+                Log.d(LOG_TAG, "can't read " + NAMES[LTE_RSRP] + ": " + e.getMessage());
+            }
+        }
+        int cdma = signal.getCdmaDbm();
+        return valid(CDMA_DBM, cdma) ? cdma : NO_LEVEL;
+    }
+
+    private static boolean valid(int field, int value) {
+        return value >= MIN[field] && value <= MAX[field];
+    }
+
+    /**
+     * Set the field if the value is valid.
+     */
+    void set(int field, int value) {
+        if (valid(field, value)) {
+            values[field] = (short) value;
+            mask |= 1 << field;
+        }
+    }
+
+    public boolean has(int field) {
+        return (mask & (1 << field)) != 0;
+    }
+
+    /**
+     * @return the value of a present field
+     */
+    public int get(int field) {
+        return values[field];
+    }
+
+    /**
+     * @return the signal level in dBm of GSM, LTE (RSRP) or CDMA, whichever is present first, NO_LEVEL if none is
+     */
+    int getLevel() {
+        if (has(GSM_SIGNAL_STRENGTH)) {
+            return 2 * get(GSM_SIGNAL_STRENGTH) - 113;
+        } else if (has(LTE_RSRP)) {
+            return get(LTE_RSRP);
+        } else if (has(CDMA_DBM)) {
+            return get(CDMA_DBM);
+        }
+        return NO_LEVEL;
+    }
+
+    byte[] encode() {
+        byte[] bytes = new byte[2 + 2 * Integer.bitCount(mask)];
+        putShort(bytes, 0, mask);
+        int offset = 2;
+        for (int field = 0; field < FIELDS; field++) {
+            if (has(field)) {
+                putShort(bytes, offset, values[field]);
+                offset += 2;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the decoded vector or null if the bytes are null or invalid
+     */
+    public static SignalVector decode(byte[] bytes) {
+        if (bytes == null || bytes.length < 2) {
+            return null;
+        }
+        SignalVector vector = new SignalVector();
+        int mask = getShort(bytes, 0) & 0xffff;
+        if ((mask >> FIELDS) != 0 || bytes.length != 2 + 2 * Integer.bitCount(mask)) {
+            return null;
+        }
+        int offset = 2;
+        for (int field = 0; field < FIELDS; field++) {
+            if ((mask & (1 << field)) != 0) {
+                vector.values[field] = getShort(bytes, offset);
+                offset += 2;
+            }
+        }
+        vector.mask = mask;
+        return vector;
+    }
+
+    private static void putShort(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >> 8);
+        bytes[offset + 1] = (byte) value;
+    }
+
+    private static short getShort(byte[] bytes, int offset) {
+        return (short) ((bytes[offset] << 8) | (bytes[offset + 1] & 0xff));
+    }
+
+    /**
+     * @return the present fields as "name=value" separated by spaces
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int field = 0; field < FIELDS; field++) {
+            if (has(field)) {
+                sb.append(sb.length() == 0 ? "" : " ").append(NAMES[field]).append('=').append(values[field]);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the decoded bytes as string, see {@link #toString()}, empty if the bytes can't be decoded
+     */
+    public static String toString(byte[] bytes) {
+        SignalVector vector = decode(bytes);
+        return vector == null ? "" : vector.toString();
+    }
+}
@@ -0,0 +1,165 @@
+package de.locked.cellmapper.model;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Quadkey based spatial index on the measurement tables.
+ * <p/>
+ * The world is divided into a 2^16 x 2^16 grid (lat/lon, ~600m x 300m at the equator). The quadkey of a point is
+ * the Morton code (interleaved bits of the x and y cell) of its cell, so that every cell of a coarser grid maps
+ * to one contiguous range of quadkeys. A bounding box is covered by a few such ranges which can be looked up in
+ * the B-tree index on the quadkey column.
+ */
+class SpatialIndex {
+    private static final String LOG_TAG = SpatialIndex.class.getName();
+    static final String COLUMN = "quadkey";
+    private static final int LEVEL = 16;
+    // upper bound for the number of ranges used to cover a bounding box
+    private static final int MAX_RANGES = 32;
+    private static final int BACKFILL_BATCH = 1000;
+
+    private SpatialIndex() {
+    }
+
+    /**
+     * @return the quadkey of the finest grid cell containing the point
+     */
+    static long quadkey(double latitude, double longitude) {
+        return interleave(cellX(longitude, LEVEL), cellY(latitude, LEVEL));
+    }
+
+    private static int cellX(double longitude, int level) {
+        int cells = 1 << level;
+        int x = (int) Math.floor((longitude + 180d) / 360d * cells);
+        return Math.max(0, Math.min(cells - 1, x));
+    }
+
+    private static int cellY(double latitude, int level) {
+        int cells = 1 << level;
+        int y = (int) Math.floor((latitude + 90d) / 180d * cells);
+        return Math.max(0, Math.min(cells - 1, y));
+    }
+
+    private static long interleave(int x, int y) {
+        long key = 0;
+        for (int i = 0; i < LEVEL; i++) {
+            key |= ((long) (x >> i) & 1) << (2 * i);
+            key |= ((long) (y >> i) & 1) << (2 * i + 1);
+        }
+        return key;
+    }
+
+    /**
+     * Builds the where clause that selects the rows inside the bounding box. The quadkey ranges use the index,
+     * the exact coordinate test removes the rows of the border cells that are outside the box.
+     *
+     * @param bbox the area
+     * @param args the arguments of the where clause are appended to this list
+     * @return the where clause (without WHERE)
+     */
+    static String where(BoundingBox bbox, List<String> args) {
+        // find the finest level that needs no more than MAX_RANGES cells
+        int level = LEVEL;
+        while (level > 0 && cellCount(bbox, level) > MAX_RANGES) {
+            level--;
+        }
+
+        int shift = 2 * (LEVEL - level);
+        List<long[]> ranges = new ArrayList<long[]>();
+        for (int y = cellY(bbox.minLatitude, level); y <= cellY(bbox.maxLatitude, level); y++) {
+            for (int x = cellX(bbox.minLongitude, level); x <= cellX(bbox.maxLongitude, level); x++) {
+                // cell at the coarse level -> contiguous range on the finest level
+                long key = interleave(x, y) << shift;
+                ranges.add(new long[]{key, key + (1L << shift) - 1});
+            }
+        }
+
+        StringBuilder sb = new StringBuilder("(");
+        for (long[] range : merge(ranges)) {
+            sb.append(sb.length() == 1 ? "" : " OR ").append(COLUMN).append(" BETWEEN ? AND ?");
+            args.add(Long.toString(range[0]));
+            args.add(Long.toString(range[1]));
+        }
+        sb.append(") AND latitude BETWEEN ? AND ? AND longitude BETWEEN ? AND ?");
+        args.add(Double.toString(bbox.minLatitude));
+        args.add(Double.toString(bbox.maxLatitude));
+        args.add(Double.toString(bbox.minLongitude));
+        args.add(Double.toString(bbox.maxLongitude));
+        return sb.toString();
+    }
+
+    private static long cellCount(BoundingBox bbox, int level) {
+        long width = cellX(bbox.maxLongitude, level) - cellX(bbox.minLongitude, level) + 1;
+        long height = cellY(bbox.maxLatitude, level) - cellY(bbox.minLatitude, level) + 1;
+        return width * height;
+    }
+
+    private static List<long[]> merge(List<long[]> ranges) {
+        Collections.sort(ranges, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+            }
+        });
+        List<long[]> merged = new ArrayList<long[]>();
+        for (long[] range : ranges) {
+            long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && last[1] + 1 >= range[0]) {
+                last[1] = Math.max(last[1], range[1]);
+            } else {
+                merged.add(range);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Adds the quadkey column and its index to the table if they are missing and computes the keys of all rows
+     * that don't have one yet.
+     */
+    static void addTo(SQLiteDatabase db, String table) {
+        if (!DbHandler.hasColumn(db, table, COLUMN)) {
+            db.execSQL("ALTER TABLE " + table + " ADD COLUMN " + COLUMN + " INT");
+        }
+        createIndex(db, table);
+
+        Log.d(LOG_TAG, "computing quadkeys of " + table);
+        SQLiteStatement update = db.compileStatement("UPDATE " + table + " SET " + COLUMN + " = ? WHERE rowid = ?");
+        db.beginTransaction();
+        try {
+            // the updated rows drop out of the query, so fetch batches until nothing is left
+            int n;
+            do {
+                n = 0;
+                Cursor cursor = db.rawQuery("SELECT rowid, latitude, longitude FROM " + table //
+                        + " WHERE " + COLUMN + " IS NULL LIMIT " + BACKFILL_BATCH, null);
+                try {
+                    while (cursor.moveToNext()) {
+                        update.bindLong(1, quadkey(cursor.getDouble(1), cursor.getDouble(2)));
+                        update.bindLong(2, cursor.getLong(0));
+                        update.execute();
+                        n++;
+                    }
+                } finally {
+                    cursor.close();
+                }
+            } while (n == BACKFILL_BATCH);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            update.close();
+        }
+    }
+
+    static void createIndex(SQLiteDatabase db, String table) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + table + "_" + COLUMN + " ON " + table + " (" + COLUMN + ")");
+    }
+}
@@ -0,0 +1,85 @@
+package de.locked.cellmapper.model;
+
+import android.location.Location;
+import android.os.Handler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Collapses consecutive measurements with the same carrier and signal within JITTER_RADIUS of the first one into a
+ * single row. The row keeps the location and signal of the first measurement, the time of the last one, the start
+ * time and the number of samples. The rows of all SIM subscriptions of one fix are handled as a group, the run
+ * continues only if it continues for all of them.
+ * <p/>
+ * The open run is handed to the buffer when a different measurement arrives, when it spans MAX_RUN or on
+ * {@link #flush()}. It's only kept in memory, so a flush is scheduled MAX_RUN after the run opens, a run that is
+ * interrupted by a kill loses at most MAX_RUN of data. Times of the handed rows are increasing, so exports can continue at their watermark.
+ */
+class StationaryCompressor {
+    private static final float JITTER_RADIUS = 25; // m
+    private static final long MAX_RUN = 30 * 60 * 1000; // ms
+
+    private final MeasurementBuffer buffer;
+    private final Handler handler;
+    private final float[] distance = new float[1];
+    private List<Measurement> run = null;
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param handler the handler the scheduled flush runs on
+     */
+    StationaryCompressor(MeasurementBuffer buffer, Handler handler) {
+        this.buffer = buffer;
+        this.handler = handler;
+    }
+
+    synchronized void add(List<Measurement> rows) {
+        if (continuesRun(rows)) {
+            for (int i = 0; i < rows.size(); i++) {
+                Measurement first = run.get(i);
+                run.set(i, new Measurement(first, rows.get(i).time, first.samples + 1));
+            }
+            return;
+        }
+        flush();
+        run = new ArrayList<Measurement>(rows);
+        handler.postDelayed(flushTask, MAX_RUN);
+    }
+
+    /**
+     * Hand the open run to the buffer.
+     */
+    synchronized void flush() {
+        handler.removeCallbacks(flushTask);
+        if (run != null) {
+            buffer.addAll(run);
+            run = null;
+        }
+    }
+
+    private boolean continuesRun(List<Measurement> rows) {
+        if (run == null || run.size() != rows.size()) {
+            return false;
+        }
+        for (int i = 0; i < rows.size(); i++) {
+            Measurement m = rows.get(i);
+            Measurement first = run.get(i);
+            if (m.time - first.startTime > MAX_RUN || !m.carrier.equals(first.carrier)
+                    || !Arrays.equals(m.signals, first.signals)) {
+                return false;
+            }
+            Location.distanceBetween(first.latitude, first.longitude, m.latitude, m.longitude, distance);
+            if (distance[0] > JITTER_RADIUS) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,142 @@
+package de.locked.cellmapper.model;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Statistics of the measurement data that are kept up to date by triggers on the hot partition, so that reading
+ * them does not depend on the size of the data.
+ * <p/>
+ * The Stats table has exactly one row with the row count, time range and the rowid of the newest row of the hot
+ * partition. CarrierStats counts the rows per carrier: rows in the hot partition and rows that were archived.
+ * The triggers rely on recursive triggers being enabled, otherwise rows replaced by INSERT OR REPLACE would be
+ * counted twice.
+ */
+class Statistics {
+    private static final String LOG_TAG = Statistics.class.getName();
+    static final String TABLE = "Stats";
+    static final String CARRIER_TABLE = "CarrierStats";
+
+    private Statistics() {
+    }
+
+    static void createTables(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE + "(" + //
+                " id INTEGER PRIMARY KEY CHECK (id = 0), " + //
+                " rows INT NOT NULL, " + //
+                " minTime INT, " + //
+                " maxTime INT, " + //
+                " lastRowId INT " + //
+                " );");
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + CARRIER_TABLE + "(" + //
+                " carrierId INTEGER PRIMARY KEY, " + //
+                " rows INT NOT NULL DEFAULT 0, " + //
+                " archived INT NOT NULL DEFAULT 0 " + //
+                " );");
+
+        String base = DbHandler.TABLE;
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + base + "_stats_insert AFTER INSERT ON " + base + " BEGIN " + //
+                " UPDATE " + TABLE + " SET rows = rows + 1, " + //
+                "  minTime = CASE WHEN minTime IS NULL OR NEW.time < minTime THEN NEW.time ELSE minTime END, " + //
+                "  lastRowId = CASE WHEN maxTime IS NULL OR NEW.time >= maxTime THEN NEW.rowid ELSE lastRowId END, " + //
+                "  maxTime = CASE WHEN maxTime IS NULL OR NEW.time >= maxTime THEN NEW.time ELSE maxTime END " + //
+                "  WHERE id = 0; " + //
+                " INSERT OR IGNORE INTO " + CARRIER_TABLE + " (carrierId) VALUES (NEW.carrierId); " + //
+                " UPDATE " + CARRIER_TABLE + " SET rows = rows + 1 WHERE carrierId = NEW.carrierId; " + //
+                " END;");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + base + "_stats_delete AFTER DELETE ON " + base + " BEGIN " + //
+                " UPDATE " + TABLE + " SET rows = rows - 1, " + //
+                "  minTime = CASE WHEN OLD.time = minTime THEN (SELECT MIN(time) FROM " + base + ") ELSE minTime END, " + //
+                "  lastRowId = CASE WHEN OLD.time = maxTime " + //
+                "   THEN (SELECT rowid FROM " + base + " ORDER BY time DESC LIMIT 1) ELSE lastRowId END, " + //
+                "  maxTime = CASE WHEN OLD.time = maxTime THEN (SELECT MAX(time) FROM " + base + ") ELSE maxTime END " + //
+                "  WHERE id = 0; " + //
+                " UPDATE " + CARRIER_TABLE + " SET rows = rows - 1 WHERE carrierId = OLD.carrierId; " + //
+                " END;");
+    }
+
+    /**
+     * (Re)compute the statistics of the hot partition from its data.
+     */
+    static void init(SQLiteDatabase db) {
+        Log.d(LOG_TAG, "compute statistics");
+        String base = DbHandler.TABLE;
+        db.execSQL("INSERT OR REPLACE INTO " + TABLE + " (id, rows, minTime, maxTime, lastRowId) " + //
+                " SELECT 0, COUNT(*), MIN(time), MAX(time), " + //
+                " (SELECT rowid FROM " + base + " ORDER BY time DESC LIMIT 1) FROM " + base);
+        db.execSQL("INSERT OR IGNORE INTO " + CARRIER_TABLE + " (carrierId) SELECT id FROM " + DbHandler.CARRIER_TABLE);
+        db.execSQL("UPDATE " + CARRIER_TABLE + " SET rows = " + //
+                " (SELECT COUNT(*) FROM " + base + " b WHERE b.carrierId = " + CARRIER_TABLE + ".carrierId)");
+    }
+
+    /**
+     * Book the rows of the hot partition in [from, to) as archived. Must be called in the transaction that
+     * deletes them from the hot partition, right before the delete.
+     */
+    static void archive(SQLiteDatabase db, long from, long to) {
+        Cursor cursor = db.rawQuery("SELECT carrierId, COUNT(*) FROM " + DbHandler.TABLE + //
+                " WHERE time >= ? AND time < ? GROUP BY carrierId", //
+                new String[]{Long.toString(from), Long.toString(to)});
+        try {
+            while (cursor.moveToNext()) {
+                addArchived(db, cursor.getLong(0), cursor.getInt(1));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    static void addArchived(SQLiteDatabase db, long carrierId, int rows) {
+        db.execSQL("INSERT OR IGNORE INTO " + CARRIER_TABLE + " (carrierId) VALUES (?)", new Object[]{carrierId});
+        db.execSQL("UPDATE " + CARRIER_TABLE + " SET archived = archived + ? WHERE carrierId = ?",
+                new Object[]{rows, carrierId});
+    }
+
+    /**
+     * @return rows of the hot partition
+     */
+    static int rows(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("SELECT rows FROM " + TABLE + " WHERE id = 0", null);
+        int rows = 0;
+        if (cursor.moveToFirst()) {
+            rows = cursor.getInt(0);
+        }
+        cursor.close();
+        return rows;
+    }
+
+    /**
+     * @return rowid of the newest row of the hot partition or -1 if it is empty
+     */
+    static long lastRowId(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("SELECT lastRowId FROM " + TABLE + " WHERE id = 0", null);
+        long rowId = -1;
+        if (cursor.moveToFirst() && !cursor.isNull(0)) {
+            rowId = cursor.getLong(0);
+        }
+        cursor.close();
+        return rowId;
+    }
+
+    /**
+     * @return carrier name -> rows of all partitions, largest first
+     */
+    static Map<String, Integer> rowsPerCarrier(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("SELECT c.name, s.rows + s.archived AS n FROM " + CARRIER_TABLE + " s " + //
+                " JOIN " + DbHandler.CARRIER_TABLE + " c ON c.id = s.carrierId " + //
+                " WHERE n > 0 ORDER BY n DESC", null);
+        Map<String, Integer> result = new LinkedHashMap<String, Integer>();
+        try {
+            while (cursor.moveToNext()) {
+                result.put(cursor.getString(0), cursor.getInt(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return result;
+    }
+}
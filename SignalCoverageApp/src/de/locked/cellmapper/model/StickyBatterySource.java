@@ -0,0 +1,38 @@
+package de.locked.cellmapper.model;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+
+/**
+ * Reads the battery state from the sticky battery changed broadcast.
+ */
+public class StickyBatterySource implements CaptureGovernor.BatterySource {
+    private final Context context;
+
+    public StickyBatterySource(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    private Intent read() {
+        return context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+    }
+
+    @Override
+    public int getLevel() {
+        Intent intent = read();
+        if (intent == null) {
+            return 100;
+        }
+        int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, 100);
+        int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, 100);
+        return scale > 0 ? level * 100 / scale : level;
+    }
+
+    @Override
+    public boolean isCharging() {
+        Intent intent = read();
+        return intent != null && intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+}
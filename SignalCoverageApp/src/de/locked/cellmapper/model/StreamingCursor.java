@@ -0,0 +1,125 @@
+package de.locked.cellmapper.model;
+
+import android.database.Cursor;
+
+/**
+ * Forward only cursor over a (possibly very large) result ordered by (time, slot). Rows are fetched page wise by
+ * that key, so the database never has to materialize or count the whole result and no read lock is held between
+ * pages.
+ */
+public class StreamingCursor {
+    private static final int DEFAULT_PAGE_SIZE = 500;
+
+    /**
+     * Provides the pages of the result.
+     */
+    interface PageSource {
+        /**
+         * @param afterTime only rows with a time greater than this or with this time and a greater slot
+         * @param afterSlot see afterTime
+         * @param limit     maximum number of rows
+         * @return the next rows ordered by time and slot
+         */
+        Cursor page(long afterTime, int afterSlot, int limit);
+    }
+
+    private final PageSource source;
+    private final int pageSize;
+    private Cursor page;
+    private int timeColumn;
+    private int slotColumn;
+    private long lastTime;
+    private int lastSlot;
+    private boolean exhausted = false;
+
+    StreamingCursor(PageSource source, long from) {
+        this(source, from, DEFAULT_PAGE_SIZE);
+    }
+
+    StreamingCursor(PageSource source, long from, int pageSize) {
+        this.source = source;
+        this.pageSize = pageSize;
+        this.lastTime = from - 1;
+        this.lastSlot = Integer.MAX_VALUE;
+        fetch();
+    }
+
+    private void fetch() {
+        if (page != null) {
+            page.close();
+        }
+        page = source.page(lastTime, lastSlot, pageSize);
+        timeColumn = page.getColumnIndexOrThrow("time");
+        slotColumn = page.getColumnIndexOrThrow("slot");
+        // pages may end early at partition borders, only an empty page marks the end
+        exhausted = page.getCount() == 0;
+    }
+
+    /**
+     * Move to the next row.
+     *
+     * @return false if there are no more rows
+     */
+    public boolean moveToNext() {
+        while (!exhausted) {
+            if (page.moveToNext()) {
+                lastTime = page.getLong(timeColumn);
+                lastSlot = page.getInt(slotColumn);
+                return true;
+            }
+            fetch();
+        }
+        return false;
+    }
+
+    /**
+     * @return the time of the current row
+     */
+    public long getTime() {
+        return lastTime;
+    }
+
+    public String[] getColumnNames() {
+        return page.getColumnNames();
+    }
+
+    public int getColumnCount() {
+        return page.getColumnCount();
+    }
+
+    public int getColumnIndex(String columnName) {
+        return page.getColumnIndex(columnName);
+    }
+
+    public boolean isNull(int column) {
+        return page.isNull(column);
+    }
+
+    public String getString(int column) {
+        return page.getString(column);
+    }
+
+    public int getInt(int column) {
+        return page.getInt(column);
+    }
+
+    public long getLong(int column) {
+        return page.getLong(column);
+    }
+
+    public byte[] getBlob(int column) {
+        return page.getBlob(column);
+    }
+
+    public float getFloat(int column) {
+        return page.getFloat(column);
+    }
+
+    public double getDouble(int column) {
+        return page.getDouble(column);
+    }
+
+    public void close() {
+        page.close();
+    }
+}
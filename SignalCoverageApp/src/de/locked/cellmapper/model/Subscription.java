@@ -0,0 +1,110 @@
+package de.locked.cellmapper.model;
+
+import android.content.Context;
+import android.telephony.PhoneStateListener;
+import android.telephony.ServiceState;
+import android.telephony.SignalStrength;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The signal samples of one SIM subscription. The default subscription is fed by the {@link DataListener} itself,
+ * further subscriptions of multi SIM devices have a listener of their own.
+ * <p/>
+ * The subscription API is newer than the API level of the app (SubscriptionManager: 22, per subscription
+ * TelephonyManager: 24), so it is used by reflection. On older devices there is only the default subscription.
+ */
+class Subscription {
+    private static final String LOG_TAG = Subscription.class.getName();
+    private static final int CAPACITY = 1000;
+
+    // 0 for the default subscription, part of the primary key (time, slot) of its rows
+    final int slot;
+    final SignalRingBuffer signals = new SignalRingBuffer(CAPACITY);
+    final SignalRingBuffer.Match match = new SignalRingBuffer.Match();
+    final SignalVector sample = new SignalVector();
+    // null for the default subscription
+    private final TelephonyManager telephonyManager;
+    private final PhoneStateListener listener;
+    private volatile String carrier;
+
+    private Subscription() {
+        this.slot = 0;
+        this.telephonyManager = null;
+        this.listener = null;
+    }
+
+    /**
+     * Create on the {@link CaptureThread}, so that the callbacks are delivered there.
+     */
+    private Subscription(int slot, TelephonyManager manager, final DataListener owner) {
+        this.slot = slot;
+        this.telephonyManager = manager;
+        this.carrier = manager.getNetworkOperatorName();
+        this.listener = new PhoneStateListener() {
+            @Override
+            public void onSignalStrengthsChanged(SignalStrength signalStrength) {
+                owner.onSignal(Subscription.this, signalStrength);
+            }
+
+            @Override
+            public void onServiceStateChanged(ServiceState serviceState) {
+                carrier = telephonyManager.getNetworkOperatorName();
+            }
+        };
+    }
+
+    /**
+     * @return the carrier of an additional subscription, null for the default one
+     */
+    String getCarrier() {
+        return carrier;
+    }
+
+    /**
+     * Register the listener of an additional subscription for the events, LISTEN_NONE to unregister.
+     */
+    void listen(int events) {
+        if (listener != null) {
+            int all = events == PhoneStateListener.LISTEN_NONE ? events
+                    : events | PhoneStateListener.LISTEN_SERVICE_STATE;
+            telephonyManager.listen(listener, all);
+        }
+    }
+
+    /**
+     * @return the default subscription first, followed by the other active subscriptions
+     */
+    static List<Subscription> discover(Context context, DataListener owner) {
+        List<Subscription> subscriptions = new ArrayList<Subscription>();
+        subscriptions.add(new Subscription());
+        try {
+            Class<?> managerClass = Class.forName("android.telephony.SubscriptionManager");
+            Object manager = managerClass.getMethod("from", Context.class).invoke(null, context);
+            List<?> infos = (List<?>) managerClass.getMethod("getActiveSubscriptionInfoList").invoke(manager);
+            if (infos == null || infos.size() < 2) {
+                return subscriptions;
+            }
+            int defaultId = (Integer) managerClass.getMethod("getDefaultSubscriptionId").invoke(null);
+            TelephonyManager telephony = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
+            Method forSubscription = TelephonyManager.class.getMethod("createForSubscriptionId", int.class);
+            for (Object info : infos) {
+                int id = (Integer) info.getClass().getMethod("getSubscriptionId").invoke(info);
+                if (id != defaultId) {
+                    TelephonyManager forId = (TelephonyManager) forSubscription.invoke(telephony, id);
+                    subscriptions.add(new Subscription(subscriptions.size(), forId, owner));
+                    Log.i(LOG_TAG, "capturing subscription " + id + " of " + forId.getNetworkOperatorName());
+                }
+            }
+        } catch (ClassNotFoundException e) {
+            Log.d(LOG_TAG, "no subscription manager, single SIM only");
+        } catch (Exception e) {
+            Log.w(LOG_TAG, "can't list subscriptions: " + e.getMessage());
+        }
+        return subscriptions;
+    }
+}
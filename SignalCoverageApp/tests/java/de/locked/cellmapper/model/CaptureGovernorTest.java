@@ -0,0 +1,177 @@
+package de.locked.cellmapper.model;
+
+import junit.framework.TestCase;
+
+public class CaptureGovernorTest extends TestCase {
+    private static final long HOUR = 3600 * 1000; // ms
+
+    private static class FakeClock implements CaptureGovernor.Clock {
+        long now = 1000;
+
+        @Override
+        public long now() {
+            return now;
+        }
+    }
+
+    private static class FakeBattery implements CaptureGovernor.BatterySource {
+        int level = 100;
+        boolean charging = false;
+
+        @Override
+        public int getLevel() {
+            return level;
+        }
+
+        @Override
+        public boolean isCharging() {
+            return charging;
+        }
+    }
+
+    private FakeClock clock;
+    private FakeBattery battery;
+    private CaptureGovernor governor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        clock = new FakeClock();
+        battery = new FakeBattery();
+        governor = new CaptureGovernor(clock, battery);
+    }
+
+    public void testChargingIsMaxRate() {
+        governor.setBudget(2);
+        battery.charging = true;
+        governor.update();
+
+        assertTrue(governor.isMaxRate());
+        assertEquals(1, governor.getDuty(), 0);
+        assertEquals(CaptureGovernor.MAX_RATE_WINDOW, governor.getListenWindow());
+        assertEquals(0, governor.getSleepWindow());
+        assertEquals(0, governor.getPollInterval(5000));
+        assertTrue(governor.holdsWakeLockWhileSleeping());
+        assertEquals(CaptureGovernor.MAX_RATE_WINDOW + CaptureGovernor.WAKE_LOCK_MARGIN, governor.getWakeLockTime());
+    }
+
+    public void testNoBudgetIsLegacyCycle() {
+        governor.update();
+        drain(10, 10);
+
+        assertFalse(governor.isMaxRate());
+        assertEquals(1, governor.getDuty(), 0);
+        assertEquals(60 * 1000, governor.getListenWindow());
+        assertEquals(2000, governor.getSleepWindow());
+        assertEquals(5000, governor.getPollInterval(5000));
+        assertTrue(governor.holdsWakeLockWhileSleeping());
+    }
+
+    public void testBudgetSpreadsCycleByDuty() {
+        governor.setBudget(2);
+        governor.update();
+
+        assertEquals(CaptureGovernor.INITIAL_DUTY, governor.getDuty(), 0);
+        assertEquals(CaptureGovernor.LISTEN_WINDOW, governor.getListenWindow());
+        // listening is a quarter of the cycle
+        assertEquals(3 * CaptureGovernor.LISTEN_WINDOW, governor.getSleepWindow());
+        assertEquals(20000, governor.getPollInterval(5000));
+        assertEquals(CaptureGovernor.LISTEN_WINDOW, governor.getPollInterval(30000));
+        assertFalse(governor.holdsWakeLockWhileSleeping());
+    }
+
+    /**
+     * The device drains 1 %/h idle and 10 %/h while listening, so a budget of 2 %/h allows a duty of 0.1.
+     */
+    public void testDutyConverges() {
+        governor.setBudget(2);
+        governor.update();
+        for (int i = 0; i < 50; i++) {
+            drain(1 + 10 * governor.getDuty(), 1);
+        }
+        assertEquals(0.1, governor.getDuty(), 0.001);
+    }
+
+    public void testStepIsClamped() {
+        governor.setBudget(10);
+        governor.update();
+        // 1 %/h is a tenth of the budget
+        drain(1, 1);
+        assertEquals(2 * CaptureGovernor.INITIAL_DUTY, governor.getDuty(), 1e-9);
+
+        governor.setBudget(0.1);
+        governor.update();
+        // 10 %/h is a hundred times the budget
+        drain(10, 1);
+        assertEquals(CaptureGovernor.INITIAL_DUTY / 2, governor.getDuty(), 1e-9);
+    }
+
+    public void testMinDuty() {
+        governor.setBudget(0.5);
+        governor.update();
+        for (int i = 0; i < 20; i++) {
+            drain(20, 1);
+        }
+        assertEquals(CaptureGovernor.MIN_DUTY, governor.getDuty(), 0);
+        assertEquals((long) (CaptureGovernor.LISTEN_WINDOW * (1 - CaptureGovernor.MIN_DUTY)
+                / CaptureGovernor.MIN_DUTY), governor.getSleepWindow());
+    }
+
+    /**
+     * Without a drop of one percent the rate is bounded by 1 % per ESTIMATE_PERIOD, i.e. 2 %/h.
+     */
+    public void testEstimatePeriodWithoutDrop() {
+        governor.setBudget(4);
+        governor.update();
+
+        clock.now += CaptureGovernor.ESTIMATE_PERIOD - 1;
+        governor.update();
+        assertEquals(CaptureGovernor.INITIAL_DUTY, governor.getDuty(), 0);
+
+        clock.now += 1;
+        governor.update();
+        assertEquals(2 * CaptureGovernor.INITIAL_DUTY, governor.getDuty(), 1e-9);
+    }
+
+    public void testSetBudgetResetsEstimate() {
+        governor.setBudget(10);
+        governor.update();
+        drain(1, 1);
+        assertEquals(2 * CaptureGovernor.INITIAL_DUTY, governor.getDuty(), 1e-9);
+
+        // the same budget keeps the estimate
+        governor.setBudget(10);
+        assertEquals(2 * CaptureGovernor.INITIAL_DUTY, governor.getDuty(), 1e-9);
+
+        // the drop before the change doesn't count for the new budget
+        clock.now += HOUR;
+        battery.level--;
+        governor.setBudget(0.1);
+        assertEquals(CaptureGovernor.INITIAL_DUTY, governor.getDuty(), 0);
+        governor.update();
+        assertEquals(CaptureGovernor.INITIAL_DUTY, governor.getDuty(), 0);
+    }
+
+    public void testChargingResetsEstimate() {
+        governor.setBudget(10);
+        governor.update();
+        clock.now += HOUR;
+        battery.level--;
+        battery.charging = true;
+        governor.update();
+        battery.charging = false;
+        governor.update();
+        assertEquals(CaptureGovernor.INITIAL_DUTY, governor.getDuty(), 0);
+    }
+
+    /**
+     * Let the battery drop by the given percentage at the rate, then update.
+     *
+     * @param rate % per hour
+     */
+    private void drain(double rate, int percent) {
+        clock.now += (long) (percent * HOUR / rate);
+        battery.level -= percent;
+        governor.update();
+    }
+}
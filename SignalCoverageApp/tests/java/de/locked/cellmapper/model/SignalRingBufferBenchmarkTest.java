@@ -0,0 +1,115 @@
+package de.locked.cellmapper.model;
+
+import android.os.Debug;
+import android.util.Log;
+import junit.framework.TestCase;
+
+import java.util.LinkedList;
+
+/**
+ * Compares the ring buffer with the LinkedList of signal entries DataListener used before: every update adds a
+ * sample to a full buffer of SIZE samples, every fix looks up the newest sample before the fix time.
+ */
+public class SignalRingBufferBenchmarkTest extends TestCase {
+    private static final String LOG_TAG = SignalRingBufferBenchmarkTest.class.getName();
+    private static final int SIZE = 1000;
+    private static final int UPDATES = 100000;
+    // signal updates per fix
+    private static final int UPDATES_PER_FIX = 5;
+    // fixes arrive this late, i.e. this many samples are newer than the matched one
+    private static final int FIX_DELAY = 30;
+    // the fixes up to time FIX_DELAY have no sample before them
+    private static final int MATCHED = UPDATES / UPDATES_PER_FIX - (FIX_DELAY / UPDATES_PER_FIX + 1);
+
+    /**
+     * The former implementation: newest entry first, linear scan.
+     */
+    private static class SignalList {
+        private final LinkedList<SignalEntry> signalList = new LinkedList<SignalEntry>();
+
+        void add(long time, SignalVector signal) {
+            signalList.addFirst(new SignalEntry(time, signal));
+            if (signalList.size() > SIZE) {
+                signalList.removeLast();
+            }
+        }
+
+        SignalVector findSignalFor(long timestamp) {
+            for (SignalEntry entry : signalList) {
+                if (entry.time < timestamp) {
+                    return entry.signal;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static class SignalEntry {
+        final long time;
+        final SignalVector signal;
+
+        SignalEntry(long time, SignalVector signal) {
+            this.time = time;
+            this.signal = signal;
+        }
+    }
+
+    public void testList() {
+        SignalList list = new SignalList();
+        SignalVector signal = new SignalVector();
+        long found = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < UPDATES; i++) {
+            signal.set(SignalVector.GSM_SIGNAL_STRENGTH, i % 32);
+            list.add(i, signal);
+            if (i % UPDATES_PER_FIX == 0 && list.findSignalFor(i - FIX_DELAY) != null) {
+                found++;
+            }
+        }
+        log("list", System.nanoTime() - start);
+        assertEquals(MATCHED, found);
+    }
+
+    public void testRingBuffer() {
+        SignalRingBuffer buffer = new SignalRingBuffer(SIZE);
+        SignalVector signal = new SignalVector();
+        SignalRingBuffer.Match match = new SignalRingBuffer.Match();
+        long found = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < UPDATES; i++) {
+            signal.set(SignalVector.GSM_SIGNAL_STRENGTH, i % 32);
+            buffer.add(i, signal);
+            if (i % UPDATES_PER_FIX == 0 && buffer.findBefore(i - FIX_DELAY, match)) {
+                assertEquals((i - FIX_DELAY - 1) % 32, match.signal.get(SignalVector.GSM_SIGNAL_STRENGTH));
+                found++;
+            }
+        }
+        log("ring buffer", System.nanoTime() - start);
+        assertEquals(MATCHED, found);
+    }
+
+    /**
+     * Adding and looking up samples must not create garbage on the telephony and location callbacks.
+     */
+    public void testRingBufferDoesNotAllocate() {
+        SignalRingBuffer buffer = new SignalRingBuffer(SIZE);
+        SignalVector signal = new SignalVector();
+        signal.set(SignalVector.GSM_SIGNAL_STRENGTH, 10);
+        SignalRingBuffer.Match match = new SignalRingBuffer.Match();
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        for (int i = 0; i < 2 * SIZE; i++) {
+            buffer.add(i, signal);
+            buffer.findBefore(i - FIX_DELAY, match);
+        }
+        int allocations = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+        assertEquals(0, allocations);
+    }
+
+    private static void log(String name, long nanos) {
+        Log.i(LOG_TAG, name + ": " + nanos / UPDATES + " ns per update, " + UPDATES + " updates, "
+                + UPDATES / UPDATES_PER_FIX + " lookups");
+    }
+}
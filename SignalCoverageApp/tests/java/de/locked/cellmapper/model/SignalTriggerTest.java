@@ -0,0 +1,39 @@
+package de.locked.cellmapper.model;
+
+import junit.framework.TestCase;
+
+public class SignalTriggerTest extends TestCase {
+    private SignalTrigger trigger;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        trigger = new SignalTrigger();
+        trigger.setThreshold(4);
+    }
+
+    public void testThreshold() {
+        assertEquals(0, trigger.onLevel(-90, 0));
+        assertEquals(SignalTrigger.SUPPRESS, trigger.onLevel(-87, SignalTrigger.WINDOW));
+        assertEquals(0, trigger.onLevel(-86, SignalTrigger.WINDOW));
+    }
+
+    public void testCoalescedTriggerFiresWithLatestLevel() {
+        assertEquals(0, trigger.onLevel(-90, 0));
+        assertEquals(SignalTrigger.WINDOW - 1000, trigger.onLevel(-80, 1000));
+        assertEquals(SignalTrigger.SUPPRESS, trigger.onLevel(-75, 2000));
+        assertTrue(trigger.fire(SignalTrigger.WINDOW));
+        // -75 is the new reference
+        assertEquals(SignalTrigger.SUPPRESS, trigger.onLevel(-78, 2 * SignalTrigger.WINDOW));
+    }
+
+    public void testCoalescedTriggerSuppressedIfLevelReturned() {
+        assertEquals(0, trigger.onLevel(-90, 0));
+        assertEquals(SignalTrigger.WINDOW - 1000, trigger.onLevel(-80, 1000));
+        assertEquals(SignalTrigger.SUPPRESS, trigger.onLevel(-91, 2000));
+        assertFalse(trigger.fire(SignalTrigger.WINDOW));
+        // -90 is still the reference, nothing is due anymore
+        assertEquals(SignalTrigger.SUPPRESS, trigger.onLevel(-87, SignalTrigger.WINDOW + 1));
+        assertFalse(trigger.fire(2 * SignalTrigger.WINDOW));
+    }
+}
@@ -0,0 +1,106 @@
+package de.locked.cellmapper.model;
+
+import android.telephony.SignalStrength;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.lang.reflect.Constructor;
+import java.util.List;
+
+/**
+ * Cost of the signal vector: database size and insert time of rows with all signal metrics compared with rows that
+ * only have the GSM signal strength (the former schema), and the time to read a SignalStrength on every callback.
+ */
+public class SignalVectorBenchmarkTest extends AndroidTestCase {
+    private static final String LOG_TAG = SignalVectorBenchmarkTest.class.getName();
+    private static final String BASELINE = "CellMapper-baseline";
+    private static final String VECTOR = "CellMapper-vector";
+    private static final int ROWS = 5000;
+    private static final int BATCH = 20;
+    private static final int READS = 10000;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(BASELINE);
+        getContext().deleteDatabase(VECTOR);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        getContext().deleteDatabase(BASELINE);
+        getContext().deleteDatabase(VECTOR);
+        super.tearDown();
+    }
+
+    public void testRowSizeAndInsertCost() {
+        long baselineTime = insert(BASELINE, StoreBenchmarkTest.rows(ROWS, false));
+        long vectorTime = insert(VECTOR, StoreBenchmarkTest.rows(ROWS, true));
+        long baselineSize = getContext().getDatabasePath(BASELINE).length();
+        long vectorSize = getContext().getDatabasePath(VECTOR).length();
+
+        Log.i(LOG_TAG, "baseline: " + baselineSize / ROWS + " bytes/row, " + baselineTime / ROWS + " ns/row");
+        Log.i(LOG_TAG, "vector: " + vectorSize / ROWS + " bytes/row, " + vectorTime / ROWS + " ns/row");
+        // 5 more fields are 10 bytes per row
+        assertTrue(vectorSize - baselineSize <= 16L * ROWS);
+    }
+
+    /**
+     * @return the time (ns) it took to write the rows
+     */
+    private long insert(String name, List<Measurement> rows) {
+        DbHandler db = new DbHandler(getContext(), name);
+        try {
+            db.getWritableDatabase(); // not part of the measurement
+            long start = System.nanoTime();
+            for (int i = 0; i < rows.size(); i += BATCH) {
+                List<Measurement> batch = rows.subList(i, Math.min(i + BATCH, rows.size()));
+                assertEquals(batch.size(), db.saveAll(batch));
+            }
+            return System.nanoTime() - start;
+        } finally {
+            // checkpoints the write ahead log, so the file has all rows
+            db.close();
+        }
+    }
+
+    /**
+     * The full read runs once per callback for the stored sample, the trigger only needs the level.
+     */
+    public void testRead() throws Exception {
+        SignalStrength signal = newSignalStrength();
+        if (signal == null) {
+            Log.w(LOG_TAG, "can't create a SignalStrength, skipped");
+            return;
+        }
+        SignalVector vector = new SignalVector();
+        long start = System.nanoTime();
+        for (int i = 0; i < READS; i++) {
+            vector.read(signal);
+        }
+        long read = System.nanoTime() - start;
+
+        int level = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < READS; i++) {
+            level = SignalVector.readLevel(signal);
+        }
+        long readLevel = System.nanoTime() - start;
+
+        Log.i(LOG_TAG, "read: " + read / READS + " ns, readLevel: " + readLevel / READS + " ns");
+        assertEquals(vector.getLevel(), level);
+    }
+
+    /**
+     * @return a SignalStrength of the hidden default constructor or null if there is none
+     */
+    private static SignalStrength newSignalStrength() {
+        try {
+            Constructor<SignalStrength> constructor = SignalStrength.class.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            return constructor.newInstance();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package de.locked.cellmapper.model;
+
+import android.content.Context;
+import android.location.Location;
+import android.location.LocationManager;
+import android.os.Build;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Insert and scan throughput of the SQLite and the log engine. Both write the same rows in batches of the default
+ * flush batch size and stream them back in time order. The results are logged, the test only checks the rows.
+ */
+public class StoreBenchmarkTest extends AndroidTestCase {
+    private static final String LOG_TAG = StoreBenchmarkTest.class.getName();
+    private static final String DB_NAME = "CellMapper-benchmark";
+    private static final int ROWS = 5000;
+    private static final int BATCH = 20;
+
+    private DbHandler db;
+    private LogStore log;
+    private File logDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(DB_NAME);
+        db = new DbHandler(getContext(), DB_NAME);
+        logDir = getContext().getDir("log-benchmark", Context.MODE_PRIVATE);
+        deleteFiles(logDir);
+        log = new LogStore(logDir);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        db.close();
+        getContext().deleteDatabase(DB_NAME);
+        log.close();
+        deleteFiles(logDir);
+        logDir.delete();
+        super.tearDown();
+    }
+
+    public void testSqlite() {
+        run("sqlite", db);
+    }
+
+    public void testLog() {
+        run("log", log);
+    }
+
+    private void run(String engine, MeasurementStore store) {
+        List<Measurement> rows = rows(ROWS, true);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < rows.size(); i += BATCH) {
+            List<Measurement> batch = rows.subList(i, Math.min(i + BATCH, rows.size()));
+            assertEquals(batch.size(), store.saveAll(batch));
+        }
+        store.sync();
+        long insert = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        StreamingCursor cursor = store.stream(null, 0, Long.MAX_VALUE);
+        int n = 0;
+        long last = -1;
+        while (cursor.moveToNext()) {
+            assertTrue(cursor.getTime() > last);
+            last = cursor.getTime();
+            n++;
+        }
+        cursor.close();
+        long scan = System.nanoTime() - start;
+
+        assertEquals(ROWS, n);
+        assertEquals(rows.get(ROWS - 1).time, last);
+        Log.i(LOG_TAG, engine + ": insert " + perSecond(ROWS, insert) + " rows/s, scan " + perSecond(ROWS, scan)
+                + " rows/s");
+    }
+
+    private static long perSecond(int rows, long nanos) {
+        return rows * 1000000000L / Math.max(1, nanos);
+    }
+
+    /**
+     * @param signals true for rows with GSM and LTE signal metrics, false for rows with the GSM signal strength only
+     * @return rows one second apart, moving north, ending now
+     */
+    static List<Measurement> rows(int n, boolean signals) {
+        List<Measurement> rows = new ArrayList<Measurement>(n);
+        long start = System.currentTimeMillis() - n * 1000L;
+        SatelliteStats satellites = new SatelliteStats();
+        satellites.inFix = 7;
+        satellites.meanSnr = 28.5f;
+        satellites.maxSnr = 41;
+        satellites.constellations = 2;
+        for (int i = 0; i < n; i++) {
+            Location location = new Location(LocationManager.GPS_PROVIDER);
+            location.setTime(start + i * 1000L);
+            location.setLatitude(52.5 + i * 0.00001);
+            location.setLongitude(13.4);
+            location.setAltitude(40);
+            location.setAccuracy(8);
+            location.setSpeed(1.4f);
+
+            SignalVector signal = new SignalVector();
+            signal.set(SignalVector.GSM_SIGNAL_STRENGTH, 10 + i % 20);
+            if (signals) {
+                signal.set(SignalVector.GSM_BIT_ERROR_RATE, i % 8);
+                signal.set(SignalVector.LTE_SIGNAL_STRENGTH, 20 + i % 40);
+                signal.set(SignalVector.LTE_RSRP, -100 + i % 30);
+                signal.set(SignalVector.LTE_RSRQ, -10 + i % 5);
+                signal.set(SignalVector.LTE_RSSNR, 50 + i % 100);
+            }
+            rows.add(new Measurement(location, 0, signal, -(i % 500), satellites, "Carrier", Build.VERSION.RELEASE,
+                    Build.MANUFACTURER, Build.MODEL, Build.DEVICE, System.getProperty("os.version")));
+        }
+        return rows;
+    }
+
+    static void deleteFiles(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+}